@@ -41,16 +41,7 @@ public class Aggregate extends Operator {
 		this.afield = afield;
 		this.gfield = gfield;
 		this.aop = aop;
-		TupleDesc td = child.getTupleDesc();
-		Type gbtype = null;
-		if(gfield != Aggregator.NO_GROUPING){
-			gbtype = td.getFieldType(gfield);
-		}
-		if(td.getFieldType(afield) == Type.INT_TYPE){
-			agg = new IntegerAggregator(gfield, gbtype, afield, aop);
-		}else{
-			agg = new StringAggregator(gfield, gbtype, afield, aop);
-		}
+		agg = createAggregator();
 		Type[] typeAr;
 		String[] nameAr;
 		if(gfield == Aggregator.NO_GROUPING){
@@ -65,6 +56,18 @@ public class Aggregate extends Operator {
 
 	}
 
+	private Aggregator createAggregator() {
+		TupleDesc td = child.getTupleDesc();
+		Type gbtype = null;
+		if(gfield != Aggregator.NO_GROUPING){
+			gbtype = td.getFieldType(gfield);
+		}
+		if(td.getFieldType(afield) == Type.INT_TYPE){
+			return new IntegerAggregator(gfield, gbtype, afield, aop);
+		}
+		return new StringAggregator(gfield, gbtype, afield, aop);
+	}
+
 	/**
 	 * @return If this aggregate is accompanied by a groupby, return the groupby
 	 *         field index in the <b>INPUT</b> tuples. If not, return
@@ -174,7 +177,14 @@ public class Aggregate extends Operator {
 	public void close() {
 		// some code goes here
 		super.close();
-		results.close();
+		// the groups may have been spilled to disk; they are aggregated
+		// again if the operator is opened again
+		if(results != null){
+			results.close();
+			results = null;
+			agg.close();
+			agg = createAggregator();
+		}
 		child.close();
 	}
 
@@ -81,5 +81,11 @@ public interface Aggregator extends Serializable {
      * @see simpledb.TupleIterator for a possible helper
      */
     public OpIterator iterator();
+
+    /**
+     * Delete the files the groups were spilled to, if any. The groups
+     * merged so far are gone afterwards.
+     */
+    public void close();
     
 }
@@ -11,7 +11,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
@@ -19,6 +19,11 @@ public class BTreeLeafPage extends BTreePage {
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// slots changed since takeSlotChanges, with their contents before, and
+	// whether a parent or sibling pointer changed too
+	private Map<Integer, byte[]> slotChanges = new HashMap<Integer, byte[]>();
+	private boolean pointersChanged = false;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -294,6 +299,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		noteSlotChange(rid.getTupleNumber());
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
 	}
@@ -351,6 +357,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// insert new record into the correct spot in sorted order
+		noteSlotChange(goodSlot);
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
@@ -364,6 +371,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	private void moveRecord(int from, int to) {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
+			noteSlotChange(to);
+			noteSlotChange(from);
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
 			tuples[to] = tuples[from];
@@ -412,6 +421,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			leftSibling = id.getPageNumber();
 		}
+		pointersChanged = true;
 	}
 
 	/**
@@ -432,6 +442,65 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			rightSibling = id.getPageNumber();
 		}
+		pointersChanged = true;
+	}
+
+	public void setParentId(BTreePageId id) throws DbException {
+		super.setParentId(id);
+		pointersChanged = true;
+	}
+
+	public byte[] getSlotData(int slot) {
+		if (!isSlotUsed(slot)) {
+			return null;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		for (int j=0; j<td.numFields(); j++) {
+			try {
+				tuples[slot].getField(j).serialize(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	public void setSlotData(int slot, byte[] data) {
+		if (slot < 0 || slot >= numSlots) {
+			throw new IllegalArgumentException("no slot " + slot + " on " + pid);
+		}
+		if (data == null) {
+			markSlotUsed(slot, false);
+			tuples[slot] = null;
+			return;
+		}
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slot));
+		try {
+			for (int j=0; j<td.numFields(); j++) {
+				t.setField(j, td.getFieldType(j).parse(dis));
+			}
+		} catch (java.text.ParseException e) {
+			throw new IllegalArgumentException("slot data does not parse", e);
+		}
+		tuples[slot] = t;
+		markSlotUsed(slot, true);
+	}
+
+	public Map<Integer, byte[]> takeSlotChanges() {
+		Map<Integer, byte[]> changes = pointersChanged ? null : slotChanges;
+		slotChanges = new HashMap<Integer, byte[]>();
+		pointersChanged = false;
+		return changes;
+	}
+
+	// remember what a slot held before its first change
+	private void noteSlotChange(int slot) {
+		if (!slotChanges.containsKey(slot)) {
+			slotChanges.put(slot, getSlotData(slot));
+		}
 	}
 
 	/**
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The BlockNestedLoopJoin operator implements the relational join operation
+ * for any predicate. Instead of reading the inner (right) child once for
+ * every outer tuple, it reads the outer (left) child in blocks of several
+ * pages' worth of tuples, and reads the inner child once per block, comparing
+ * every inner tuple with every tuple of the block.
+ */
+public class BlockNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final int blockPages;
+
+    transient private ArrayList<Tuple> block = new ArrayList<Tuple>();
+    transient private int blockPos = 0;
+    transient private Tuple t2 = null;
+    // whether the inner child has been read for a block already
+    transient private boolean innerRead = false;
+
+    /**
+     * Constructor. Blocks are half the size of the BufferPool.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, Math.max(1, Database.getBufferPool().getNumPages() / 2));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            The number of pages of outer tuples in a block
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
+        super(p, child1, child2);
+        if (blockPages < 1) {
+            throw new IllegalArgumentException("blocks must hold at least a page");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.blockPages = blockPages;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        reset();
+    }
+
+    private void reset() {
+        block.clear();
+        blockPos = 0;
+        t2 = null;
+        innerRead = false;
+    }
+
+    // read the next block of outer tuples; false at the end of the outer child
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        int tupleSize = child1.getTupleDesc().getSize();
+        long blockTuples = Math.max(1, (long) blockPages * BufferPool.getPageSize() / tupleSize);
+        while (block.size() < blockTuples && child1.hasNext()) {
+            block.add(child1.next());
+        }
+        if (block.isEmpty()) {
+            return false;
+        }
+        if (innerRead) {
+            child2.rewind();
+        }
+        innerRead = true;
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The results for a block of outer tuples are returned in the
+     * order of the inner tuples.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple t1 = block.get(blockPos++);
+                    if (pred.filter(t1, t2)) {
+                        return joinTuple(t1, t2);
+                    }
+                }
+                t2 = null;
+            }
+            if (!block.isEmpty() && child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+            } else if (!loadBlock()) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        super.setChildren(children);
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
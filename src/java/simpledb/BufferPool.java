@@ -2,9 +2,15 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from disk.
@@ -28,6 +34,14 @@ public class BufferPool {
 
 	private LockManager lockManager;
 	private Map<PageId, Page> buffers;
+	private final ReplacementPolicy policy;
+	private final Prefetcher prefetcher;
+	// end LSN of the last log record describing a change to each dirty
+	// page; the log must be forced up to it before the page is written
+	private final Map<PageId, Long> pageLsns = new ConcurrentHashMap<PageId, Long>();
+	// LSN of the first log record that dirtied each page since it was last
+	// written: the dirty page table that bounds redo during recovery
+	private final Map<PageId, Long> recLsns = new ConcurrentHashMap<PageId, Long>();
 	/**
 	 * Default number of pages passed to the constructor. This is used by other
 	 * classes. BufferPool should use the numPages argument to the constructor
@@ -36,22 +50,113 @@ public class BufferPool {
 	public static final int DEFAULT_PAGES = 50;
 
 	/**
-	 * Creates a BufferPool that caches up to numPages pages.
+	 * System property that selects the replacement policy used by
+	 * {@link #BufferPool(int)}: one of "clock" (the default), "lru-k" or "2q".
+	 */
+	public static final String POLICY_PROPERTY = "simpledb.ReplacementPolicy";
+
+	/**
+	 * System property that puts new BufferPools in STEAL/NO-FORCE mode.
+	 *
+	 * @see #setStealNoForce(boolean)
+	 */
+	public static final String STEAL_NO_FORCE_PROPERTY = "simpledb.StealNoForce";
+
+	private volatile boolean stealNoForce = false;
+	// the background writer, running in STEAL/NO-FORCE mode
+	private PageWriter writer = null; // protected by this
+	private long writerIntervalMs = PageWriter.DEFAULT_INTERVAL_MS; // protected by this
+	// held while pages are copied and written, so that two writes of a page
+	// land in the order they were copied; only page latches and the log
+	// are taken inside it
+	private final Object writeLock = new Object();
+	// page latches, striped by page id: held while a page is changed and
+	// the change logged, and while it is copied to be written, so that no
+	// write carries a change that is not logged yet
+	private static final int LATCH_STRIPES = 64;
+	private final ReentrantLock[] latches = new ReentrantLock[LATCH_STRIPES];
+
+	/**
+	 * Creates a BufferPool that caches up to numPages pages, using the
+	 * replacement policy named by the {@link #POLICY_PROPERTY} system
+	 * property.
 	 *
 	 * @param numPages
 	 *            maximum number of pages in this buffer pool.
 	 */
 	public BufferPool(int numPages) {
+		this(numPages, createPolicy(System.getProperty(POLICY_PROPERTY), numPages));
+	}
+
+	/**
+	 * Creates a BufferPool that caches up to numPages pages.
+	 *
+	 * @param numPages
+	 *            maximum number of pages in this buffer pool.
+	 * @param policy
+	 *            decides which page to evict when the pool is full
+	 */
+	public BufferPool(int numPages, ReplacementPolicy policy) {
 		// some code goes here
 		this.numPages = numPages;
 		this.lockManager = new LockManager();
 		this.buffers = new ConcurrentHashMap<PageId, Page>();
+		this.policy = policy;
+		this.prefetcher = new Prefetcher(this);
+		for (int i = 0; i < latches.length; i++) {
+			latches[i] = new ReentrantLock();
+		}
+		setStealNoForce(Boolean.getBoolean(STEAL_NO_FORCE_PROPERTY));
+	}
+
+	/**
+	 * Creates the replacement policy with the given name for a pool of
+	 * numPages pages.
+	 *
+	 * @param name
+	 *            "clock", "lru-k" or "2q"; null selects "clock"
+	 * @throws IllegalArgumentException
+	 *             if the name is not recognized
+	 */
+	public static ReplacementPolicy createPolicy(String name, int numPages) {
+		if (name == null || name.equalsIgnoreCase("clock")) {
+			return new ClockPolicy(numPages);
+		} else if (name.equalsIgnoreCase("lru-k")) {
+			return new LruKPolicy(numPages);
+		} else if (name.equalsIgnoreCase("2q")) {
+			return new TwoQueuePolicy(numPages);
+		}
+		throw new IllegalArgumentException("unknown replacement policy " + name);
+	}
+
+	/**
+	 * Returns a private ring for a sequential scan over a file of the given
+	 * number of pages, or null if the file is small enough to be scanned
+	 * through the shared pool. A file that does not fit in the pool would
+	 * only flush it without ever being cached, so it gets a ring of at most
+	 * a quarter of the pool.
+	 *
+	 * @param filePages
+	 *            number of pages in the file being scanned
+	 */
+	public BufferRing getScanRing(int filePages) {
+		if (filePages > numPages) {
+			return new BufferRing(Math.min(BufferRing.DEFAULT_RING_SIZE, Math.max(1, numPages / 4)));
+		}
+		return null;
 	}
 
 	public static int getPageSize() {
 		return pageSize;
 	}
 
+	/**
+	 * @return the number of pages the pool caches
+	 */
+	public int getNumPages() {
+		return numPages;
+	}
+
 	// THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
 	public static void setPageSize(int pageSize) {
 		BufferPool.pageSize = pageSize;
@@ -102,24 +207,188 @@ public class BufferPool {
 			buffers.put(pid, p);
 			return getPage(tid, pid, perm);
 		}*/
-		try {
-			lockManager.acquireLock(tid, perm, pid);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			System.out.println("time out!");
-			throw new TransactionAbortedException();
+		return getPage(tid, pid, perm, null);
+	}
+
+	/**
+	 * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+	 * Permissions)}, but if the page is not already resident read it into the
+	 * given ring instead of the shared pool. Used by sequential scans over
+	 * large files so that they do not evict other transactions' pages.
+	 *
+	 * @param ring
+	 *            the scan's private ring, or null to use the shared pool
+	 * @see #getScanRing(int)
+	 */
+	public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+			throws TransactionAbortedException, DbException {
+		checkWritable(tid, perm);
+		lockManager.acquireLock(tid, perm, pid);
+		return fetchPage(tid, pid, ring);
+	}
+
+	/**
+	 * Retrieve the specified page like {@link #getPage(TransactionId, PageId,
+	 * Permissions)}, but only lock it in the intention mode for perm: the
+	 * caller locks the records it reads or changes with
+	 * {@link #lockTuple}. In STEAL/NO-FORCE mode, where an abort undoes
+	 * single records instead of restoring page images, this lets
+	 * transactions change different records of one page at the same time.
+	 */
+	public Page getPageForRecords(TransactionId tid, PageId pid, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		checkWritable(tid, perm);
+		lockManager.acquireIntentionLock(tid, perm, pid);
+		return fetchPage(tid, pid, null);
+	}
+
+	/**
+	 * Return true if a transaction other than tid holds a lock on the
+	 * specified record.
+	 */
+	public boolean isLockedByOther(TransactionId tid, RecordId rid) {
+		return lockManager.isLocked(rid, tid);
+	}
+
+	private void checkWritable(TransactionId tid, Permissions perm) throws DbException {
+		if (perm == Permissions.READ_WRITE && tid != null && tid.isReadOnly()) {
+			throw new DbException("read-only transaction " + tid.getId() + " cannot write");
 		}
+	}
+
+	// look the locked page up, reading it into the pool or the ring
+	private Page fetchPage(TransactionId tid, PageId pid, BufferRing ring) throws DbException {
 		Page p = buffers.get(pid);
-		if(p == null){
-			p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-			if(buffers.size() > numPages){
-				evictPage();
+		if(p == null && ring != null){
+			p = ring.get(pid);
+			if(p == null){
+				DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+				if (ring.holdsViews() && f instanceof HeapFile) {
+					p = ((HeapFile) f).readPageView(pid);
+				} else {
+					p = readPage(pid);
+				}
+				ring.add(p);
 			}
+			return p;
+		}
+		if(p == null){
+			p = admit(tid, readPage(pid), stealNoForce);
+		}
+		policy.recordAccess(pid);
+		return p;
+	}
+
+	// put a page just read into the pool, evicting pages until there is a
+	// frame for it, unless another thread put the page there first; the
+	// check, the evictions and the insertion happen under the pool lock, so
+	// the pool never holds more than numPages pages
+	private synchronized Page admit(TransactionId tid, Page p, boolean steal) throws DbException {
+		PageId pid = p.getId();
+		Page resident = buffers.get(pid);
+		if (resident != null) {
+			return resident;
+		}
+		while (buffers.size() >= numPages) {
+			evictPage(tid, steal);
+		}
+		latchPage(pid);
+		try {
 			buffers.put(pid, p);
+		} finally {
+			unlatchPage(pid);
+		}
+		return p;
+	}
+
+	/**
+	 * Latch the specified page. A DbFile holds the latch while it checks
+	 * that a page is still resident, changes it and calls
+	 * {@link #pageChanged}; the pool holds it while it copies the page to
+	 * write it out and while it evicts it. Latches are short-term: nothing
+	 * may wait for a lock or for the BufferPool while holding one.
+	 */
+	public void latchPage(PageId pid) {
+		latchOf(pid).lock();
+	}
+
+	/** Release a latch taken by {@link #latchPage}. */
+	public void unlatchPage(PageId pid) {
+		latchOf(pid).unlock();
+	}
+
+	/**
+	 * Returns true if the specified page is the resident copy of its page.
+	 * A page returned by getPage() may have been evicted since, if it was
+	 * clean; it must then be got again before it is changed. Call this with
+	 * the page latched.
+	 */
+	public boolean isResident(Page p) {
+		return buffers.get(p.getId()) == p;
+	}
+
+	private ReentrantLock latchOf(PageId pid) {
+		return latches[(pid.hashCode() & 0x7fffffff) % latches.length];
+	}
+
+	/**
+	 * Read a page that is not resident, using a prefetched copy if there is
+	 * one.
+	 */
+	private Page readPage(PageId pid) {
+		Page p = prefetcher.take(pid);
+		if (p == null) {
+			p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
 		}
 		return p;
 	}
 
+	// frames not holding a page; the prefetcher holds at most this many
+	int freeFrames() {
+		return Math.max(0, numPages - buffers.size());
+	}
+
+	/**
+	 * Start reading the specified page from disk in the background so that
+	 * a later getPage() on it does not wait for I/O. Does nothing if the page
+	 * is already resident. No lock is acquired.
+	 *
+	 * @param pid
+	 *            the ID of a page that exists on disk
+	 * @see #getPrefetchWindow()
+	 */
+	public void prefetch(PageId pid) {
+		if (!buffers.containsKey(pid)) {
+			prefetcher.prefetch(pid);
+		}
+	}
+
+	/**
+	 * Start reading the specified B+ tree leaf page and the chain of its
+	 * right siblings in the background, getPrefetchWindow() pages in all.
+	 *
+	 * @param pid
+	 *            the ID of a leaf page
+	 */
+	public void prefetchLeafChain(BTreePageId pid) {
+		prefetcher.prefetchLeafChain(pid, prefetcher.getWindow());
+	}
+
+	/**
+	 * @return the number of pages sequential scans should read ahead
+	 */
+	public int getPrefetchWindow() {
+		return prefetcher.getWindow();
+	}
+
+	/**
+	 * Set the number of pages sequential scans read ahead. 0 disables
+	 * prefetching.
+	 */
+	public void setPrefetchWindow(int window) {
+		prefetcher.setWindow(window);
+	}
+
 	/**
 	 * Releases the lock on a page. Calling this is very risky, and may result
 	 * in wrong behavior. Think hard about who needs to call this and why, and
@@ -129,14 +398,75 @@ public class BufferPool {
 	 *            the ID of the transaction requesting the unlock
 	 * @param pid
 	 *            the ID of the page to unlock
-	 * @throws InterruptedException 
 	 */
-	public void releasePage(TransactionId tid, PageId pid) throws InterruptedException {
+	public void releasePage(TransactionId tid, PageId pid) {
 		// some code goes here
 		// not necessary for lab1|lab2
 		lockManager.releaseLock(tid, pid);
 	}
 
+	/**
+	 * Switch between NO-STEAL/FORCE mode, the default, and STEAL/NO-FORCE
+	 * mode.
+	 * <p>
+	 * In NO-STEAL/FORCE mode, dirty pages are never evicted, a commit writes
+	 * every page the transaction dirtied, and an abort puts back the before
+	 * images of the pages.
+	 * <p>
+	 * In STEAL/NO-FORCE mode, a dirty page may be evicted once the log is
+	 * forced past its last change, and a commit only forces the log, so a
+	 * transaction may dirty more pages than the pool holds. Aborts rely on
+	 * {@link LogFile#rollback}, so transactions must log their begin record,
+	 * as {@link Transaction} does; crashes are recovered from the log. A
+	 * background {@link PageWriter} keeps writing out the dirty pages no
+	 * running transaction is changing, so that evictions seldom have to.
+	 */
+	public synchronized void setStealNoForce(boolean enabled) {
+		stealNoForce = enabled;
+		if (writer != null) {
+			writer.shutdown();
+			writer = null;
+		}
+		if (enabled && writerIntervalMs > 0) {
+			writer = new PageWriter(this, writerIntervalMs);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Set how often the background writer of STEAL/NO-FORCE mode runs.
+	 *
+	 * @param intervalMs
+	 *            milliseconds between two rounds of writes, or 0 for no
+	 *            background writer
+	 */
+	public synchronized void setWriterInterval(long intervalMs) {
+		if (intervalMs < 0) {
+			throw new IllegalArgumentException("negative writer interval");
+		}
+		writerIntervalMs = intervalMs;
+		setStealNoForce(stealNoForce);
+	}
+
+	/**
+	 * Stop the background threads of this pool: the STEAL/NO-FORCE writer
+	 * and the prefetcher's I/O threads. Pages are not written out, and no
+	 * pages are prefetched afterwards. Database calls this when it replaces
+	 * the pool.
+	 */
+	public synchronized void close() {
+		if (writer != null) {
+			writer.shutdown();
+			writer = null;
+		}
+		prefetcher.close();
+	}
+
+	/** Returns true if the pool is in STEAL/NO-FORCE mode. */
+	public boolean isStealNoForce() {
+		return stealNoForce;
+	}
+
 	/**
 	 * Release all locks associated with a given transaction.
 	 *
@@ -155,6 +485,39 @@ public class BufferPool {
 		}
 	}
 
+	/**
+	 * Lock a single record, and its page and table in the matching intention
+	 * mode. Record locks are escalated to page or table locks when a
+	 * transaction holds too many of them.
+	 *
+	 * @param tid
+	 *            the ID of the transaction requesting the lock
+	 * @param rid
+	 *            the record to lock
+	 * @param perm
+	 *            READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+	 */
+	public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+			throws TransactionAbortedException {
+		lockManager.acquireLock(tid, perm, rid);
+	}
+
+	/**
+	 * Return true if the specified transaction has a lock on the specified
+	 * record, or on its page or table
+	 */
+	public boolean holdsLock(TransactionId tid, RecordId rid) {
+		return lockManager.isHoldLock(tid, rid);
+	}
+
+	/**
+	 * @return the number of lock deadlocks detected, each of which aborted
+	 *         one transaction
+	 */
+	public long getDeadlockCount() {
+		return lockManager.getDeadlockCount();
+	}
+
 	/**
 	 * Return true if the specified transaction has a lock on the specified page
 	 */
@@ -178,12 +541,25 @@ public class BufferPool {
 		// some code goes here
 		// not necessary for lab1|lab2
 		if(commit){
-			try{
-				flushPages(tid);
-			}catch(IOException e){
-				e.printStackTrace();
+			if (!stealNoForce) {
+				try{
+					flushPages(tid);
+				}catch(IOException e){
+					e.printStackTrace();
+				}
 			}
-		}else{
+			// the committed pages are what a later abort has to go back to
+			for (Page p : buffers.values()) {
+				if (holdsLock(tid, p.getId())) {
+					latchPage(p.getId());
+					try {
+						p.setBeforeImage();
+					} finally {
+						unlatchPage(p.getId());
+					}
+				}
+			}
+		}else if (!stealNoForce) {
     		for (PageId pid: buffers.keySet())
     		{
     			Page p = buffers.get(pid);
@@ -191,6 +567,8 @@ public class BufferPool {
     			{
     				buffers.put(pid, p.getBeforeImage());
     				p.markDirty(false, null);
+    				pageLsns.remove(pid);
+    				recLsns.remove(pid);
     			}
     		}
 		}
@@ -200,8 +578,9 @@ public class BufferPool {
 	/**
 	 * Add a tuple to the specified table on behalf of transaction tid. Will
 	 * acquire a write lock on the page the tuple is added to and any other
-	 * pages that are updated (Lock acquisition is not needed for lab2). May
-	 * block if the lock(s) cannot be acquired.
+	 * pages that are updated (Lock acquisition is not needed for lab2), and
+	 * an exclusive lock on the new record. May block if the lock(s) cannot
+	 * be acquired.
 	 * 
 	 * Marks any pages that were dirtied by the operation as dirty by calling
 	 * their markDirty bit, and adds versions of any pages that have been
@@ -220,18 +599,17 @@ public class BufferPool {
 		// some code goes here
 		// not necessary for lab1
 		ArrayList<Page> arrayList = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-		Iterator<Page> it = arrayList.iterator();
-		while(it.hasNext()){
-			Page nextPage = it.next();
-			nextPage.markDirty(true, tid);
-			buffers.put(nextPage.getId(), nextPage);
+		if(t.getRecordId() != null){
+			lockManager.acquireLock(tid, Permissions.READ_WRITE, t.getRecordId());
 		}
+		pagesChanged(tid, arrayList);
 	}
 
 	/**
-	 * Remove the specified tuple from the buffer pool. Will acquire a write
-	 * lock on the page the tuple is removed from and any other pages that are
-	 * updated. May block if the lock(s) cannot be acquired.
+	 * Remove the specified tuple from the buffer pool. Will acquire an
+	 * exclusive lock on the tuple's record, a write lock on the page the
+	 * tuple is removed from and any other pages that are updated. May block
+	 * if the lock(s) cannot be acquired.
 	 *
 	 * Marks any pages that were dirtied by the operation as dirty by calling
 	 * their markDirty bit, and adds versions of any pages that have been
@@ -250,15 +628,174 @@ public class BufferPool {
 		RecordId rid = t.getRecordId();
 		PageId pid = rid.getPageId();
 		int tableId = pid.getTableId();
+		lockManager.acquireLock(tid, Permissions.READ_WRITE, rid);
 		ArrayList<Page> arrayList = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
-		Iterator<Page> it = arrayList.iterator();
-		while(it.hasNext()){
-			Page nextPage = it.next();
-			nextPage.markDirty(true, tid);
-			buffers.put(nextPage.getId(), nextPage);
+		pagesChanged(tid, arrayList);
+	}
+
+	/**
+	 * Log the changes a DbFile made to the specified pages that it did not
+	 * log through {@link #pageChanged}, and mark those pages dirty. Each
+	 * page is latched meanwhile: with record locks, another transaction may
+	 * be changing the same page, and its changes are only logged by itself,
+	 * under the latch. A page that is no longer the resident copy is stale
+	 * and is not put back.
+	 */
+	private void pagesChanged(TransactionId tid, List<Page> pages) throws IOException {
+		for (Page p : pages) {
+			PageId pid = p.getId();
+			latchPage(pid);
+			try {
+				Page resident = buffers.get(pid);
+				if (resident != null && resident != p) {
+					continue;
+				}
+				if (!logChanges(tid, Collections.singletonList(p)).isEmpty()) {
+					p.markDirty(true, tid);
+					buffers.put(pid, p);
+					policy.recordAccess(pid);
+				}
+			} finally {
+				unlatchPage(pid);
+			}
 		}
 	}
 
+	/**
+	 * Log the changes an insert or delete made to the specified resident
+	 * page and mark it dirty. The DbFile calls this right after changing
+	 * the page, with the page still latched, so that the page is never
+	 * written with a change that is not logged.
+	 *
+	 * @see #latchPage(PageId)
+	 */
+	public void pageChanged(TransactionId tid, Page p) throws IOException {
+		logChanges(tid, Collections.singletonList(p));
+		p.markDirty(true, tid);
+		buffers.put(p.getId(), p);
+	}
+
+	/**
+	 * Write log records for the changes an insert or delete made to the
+	 * specified pages. A SlottedPage whose changes are confined to its slots
+	 * gets one record per changed slot; any other page is logged as a before
+	 * and after image.
+	 *
+	 * @return the pages that had changes to log; a SlottedPage logged by
+	 *         {@link #pageChanged} already has none
+	 */
+	private List<Page> logChanges(TransactionId tid, List<Page> pages) throws IOException {
+		LogFile log = Database.getLogFile();
+		List<Page> changed = new ArrayList<Page>();
+		for (Page p : pages) {
+			Map<Integer, byte[]> changes = null;
+			if (p instanceof SlottedPage) {
+				changes = ((SlottedPage) p).takeSlotChanges();
+				if (changes != null && changes.isEmpty()) {
+					continue;
+				}
+			}
+			changed.add(p);
+			// enter the page in the dirty page table before its first record
+			// is logged, so that a concurrent checkpoint cannot miss it
+			recLsns.putIfAbsent(p.getId(), log.getEndLsn());
+			// the log is forced up to the end of the page's last record,
+			// which is read under the log lock so no other record comes
+			// in between
+			long end = -1;
+			synchronized (log) {
+				if (changes == null) {
+					log.logWrite(tid, p.getBeforeImage(), p);
+					end = log.getEndLsn();
+				} else {
+					for (Map.Entry<Integer, byte[]> e : changes.entrySet()) {
+						byte[] after = ((SlottedPage) p).getSlotData(e.getKey());
+						if (!Arrays.equals(e.getValue(), after)) {
+							log.logTupleWrite(tid, new RecordId(p.getId(), e.getKey()), e.getValue(), after);
+							end = log.getEndLsn();
+						}
+					}
+				}
+			}
+			if (end >= 0) {
+				pageLsns.put(p.getId(), end);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return the dirty page table: for each page with logged changes that
+	 *         have not been written to disk, the LSN of the first such change
+	 */
+	public Map<PageId, Long> getDirtyPageTable() {
+		return new HashMap<PageId, Long>(recLsns);
+	}
+
+	/**
+	 * Return the specified page if it is resident, without acquiring any
+	 * lock or reading it. Used by the recovery manager.
+	 */
+	public synchronized Page getBufferedPage(PageId pid) {
+		return buffers.get(pid);
+	}
+
+	/**
+	 * Return the specified page, reading it into the pool if it is not
+	 * resident, without acquiring any lock. Used by the recovery manager,
+	 * which redoes and undoes changes either before any transaction runs or
+	 * on behalf of a transaction that already holds the locks. Dirty pages
+	 * are evicted to make room even without STEAL: redo may have filled the
+	 * pool with them, and a transaction rolled back at restart may have
+	 * changed more pages than the pool holds. Their changes are logged, and
+	 * the log is forced before they are written.
+	 *
+	 * @param tid
+	 *            the transaction the changes are undone for, whose own pages
+	 *            may be evicted to make room; null if none
+	 */
+	public synchronized Page getPageForRecovery(TransactionId tid, PageId pid) throws DbException {
+		Page p = buffers.get(pid);
+		if (p == null) {
+			p = admit(tid, readPage(pid), true);
+		}
+		policy.recordAccess(pid);
+		return p;
+	}
+
+	/**
+	 * Put a page the recovery manager has redone or undone changes on into
+	 * the pool, marked dirty.
+	 *
+	 * @param p
+	 *            the changed page
+	 * @param tid
+	 *            the transaction to mark the page dirty by
+	 * @param recLsn
+	 *            the first log record that describes the changes; it enters
+	 *            the dirty page table unless the page is there already
+	 * @param pageLsn
+	 *            the end of the last log record that describes the changes
+	 * @throws DbException
+	 *             if the page is not resident and no page can be evicted to
+	 *             make room for it
+	 */
+	public synchronized void putRecoveredPage(Page p, TransactionId tid, long recLsn, long pageLsn)
+			throws DbException {
+		PageId pid = p.getId();
+		if (!buffers.containsKey(pid)) {
+			while (buffers.size() >= numPages) {
+				evictPage(tid, true);
+			}
+		}
+		p.markDirty(true, tid);
+		buffers.put(pid, p);
+		policy.recordAccess(pid);
+		prefetcher.invalidate(pid);
+		pageLsns.put(pid, pageLsn);
+		recLsns.putIfAbsent(pid, recLsn);
+	}
+
 	/**
 	 * Flush all dirty pages to disk. NB: Be careful using this routine -- it
 	 * writes dirty data to disk so will break simpledb if running in NO STEAL
@@ -267,10 +804,7 @@ public class BufferPool {
 	public synchronized void flushAllPages() throws IOException {
 		// some code goes here
 		// not necessary for lab1
-    	for (PageId pid:buffers.keySet())
-    	{
-    		flushPage(pid);
-    	}
+		writeDirtyPages(buffers.keySet());
 	}
 
 	/**
@@ -285,6 +819,10 @@ public class BufferPool {
 		// some code goes here
 		// not necessary for lab1
 		buffers.remove(pid);
+		policy.remove(pid);
+		prefetcher.invalidate(pid);
+		pageLsns.remove(pid);
+		recLsns.remove(pid);
 	}
 
 	/**
@@ -296,11 +834,7 @@ public class BufferPool {
 	private synchronized void flushPage(PageId pid) throws IOException {
 		// some code goes here
 		// not necessary for lab1
-		Page p = buffers.get(pid);
-		if(p != null){
-			Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-			p.markDirty(false, null);
-		}
+		writePages(pid.getTableId(), Collections.singletonList(pid));
 	}
 
 	/**
@@ -309,33 +843,198 @@ public class BufferPool {
 	public synchronized void flushPages(TransactionId tid) throws IOException {
 		// some code goes here
 		// not necessary for lab1|lab2
+		ArrayList<PageId> pids = new ArrayList<PageId>();
     	for (PageId pid:buffers.keySet())
     	{
-    		if(buffers.get(pid) != null && holdsLock(tid, pid)){
-    			flushPage(pid);
+    		if(holdsLock(tid, pid)){
+    			pids.add(pid);
     		}
     	}
+		writeDirtyPages(pids);
+	}
+
+	/**
+	 * Write those of the specified pages that are dirty to disk. Each DbFile
+	 * gets all of its pages in one call so that it can write runs of adjacent
+	 * pages together.
+	 */
+	private synchronized void writeDirtyPages(Collection<PageId> pids) throws IOException {
+		HashMap<Integer, List<PageId>> byTable = new HashMap<Integer, List<PageId>>();
+		for (PageId pid : pids) {
+			Page p = buffers.get(pid);
+			if (p == null || p.isDirty() == null) {
+				continue;
+			}
+			List<PageId> tablePids = byTable.get(pid.getTableId());
+			if (tablePids == null) {
+				tablePids = new ArrayList<PageId>();
+				byTable.put(pid.getTableId(), tablePids);
+			}
+			tablePids.add(pid);
+		}
+		for (Map.Entry<Integer, List<PageId>> e : byTable.entrySet()) {
+			writePages(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Write those of the specified pages of one table that are dirty to
+	 * disk, in one call to its DbFile. Each page is copied under its latch,
+	 * so the copy holds only changes that are logged, and the log is forced
+	 * past them before the copy is written (write-ahead logging). A page is
+	 * only marked clean afterwards if it was not changed again meanwhile.
+	 *
+	 * @return the number of pages written
+	 */
+	private int writePages(int tableId, Collection<PageId> pids) throws IOException {
+		List<Page> pages = new ArrayList<Page>();
+		List<Long> lsns = new ArrayList<Long>();
+		// two writes of a page must land in the order they were copied
+		synchronized (writeLock) {
+			List<Page> copies = new ArrayList<Page>();
+			long lastEnd = -1;
+			for (PageId pid : pids) {
+				latchPage(pid);
+				try {
+					Page p = buffers.get(pid);
+					if (p == null || p.isDirty() == null) {
+						continue;
+					}
+					Long lsn = pageLsns.get(pid);
+					if (lsn != null && lsn > lastEnd) {
+						lastEnd = lsn;
+					}
+					copies.add(PageTypes.createPage(PageTypes.codeOf(p), pid, p.getPageData()));
+					pages.add(p);
+					lsns.add(lsn);
+				} finally {
+					unlatchPage(pid);
+				}
+			}
+			if (copies.isEmpty()) {
+				return 0;
+			}
+			if (lastEnd >= 0) {
+				Database.getLogFile().force(lastEnd);
+			}
+			Database.getCatalog().getDatabaseFile(tableId).writePages(copies);
+		}
+		for (int i = 0; i < pages.size(); i++) {
+			Page p = pages.get(i);
+			PageId pid = p.getId();
+			latchPage(pid);
+			try {
+				prefetcher.invalidate(pid);
+				if (buffers.get(pid) == p && Objects.equals(pageLsns.get(pid), lsns.get(i))) {
+					p.markDirty(false, null);
+					pageLsns.remove(pid);
+					recLsns.remove(pid);
+				}
+			} finally {
+				unlatchPage(pid);
+			}
+		}
+		return pages.size();
+	}
+
+	/**
+	 * Write out the dirty pages that no running transaction may be changing,
+	 * each DbFile's in one call so that adjacent pages are written together.
+	 * Called by the background writer. The BufferPool lock is not held: each
+	 * page is copied under its latch, and stays dirty, with its entry in the
+	 * dirty page table, until the copy is on disk and only if no change was
+	 * logged after the copy.
+	 *
+	 * @return the number of pages written
+	 */
+	int writeBehind() throws IOException {
+		HashMap<Integer, List<PageId>> byTable = new HashMap<Integer, List<PageId>>();
+		for (Page p : buffers.values()) {
+			PageId pid = p.getId();
+			if (p.isDirty() == null || lockManager.isWriteLocked(pid)) {
+				continue;
+			}
+			List<PageId> pids = byTable.get(pid.getTableId());
+			if (pids == null) {
+				pids = new ArrayList<PageId>();
+				byTable.put(pid.getTableId(), pids);
+			}
+			pids.add(pid);
+		}
+		int written = 0;
+		for (Map.Entry<Integer, List<PageId>> e : byTable.entrySet()) {
+			written += writePages(e.getKey(), e.getValue());
+		}
+		return written;
 	}
 
 	/**
 	 * Discards a page from the buffer pool. Flushes the page to disk to ensure
-	 * dirty pages are updated on disk.
-	 * @throws  
+	 * dirty pages are updated on disk. The victim is chosen by the replacement
+	 * policy among the clean pages, or if steal is set among all pages if
+	 * every page is dirty. A victim changed again while it was written
+	 * stays, and another one is tried, so a frame is always freed on return.
+	 *
+	 * @param steal
+	 *            whether a dirty page may be written out and evicted: in
+	 *            STEAL mode, and for the recovery manager
+	 * @throws DbException
+	 *             if no page can be evicted, as every page is dirty (or, if
+	 *             steal is set, being changed), or if the victim cannot be
+	 *             written
 	 */
-	private synchronized void evictPage() throws DbException {
+	private synchronized void evictPage(final TransactionId tid, boolean steal) throws DbException {
 		// some code goes here
 		// not necessary for lab1
-		for (PageId pid:buffers.keySet()){
+		// a victim changed again after it was written stays; give up once
+		// every page has had its chance
+		for (int attempts = buffers.size(); attempts > 0; attempts--) {
+			PageId pid = policy.evict(new ReplacementPolicy.EvictionFilter() {
+				public boolean canEvict(PageId pid) {
+					Page p = buffers.get(pid);
+					return p == null || p.isDirty() == null;
+				}
+			});
+			if (pid == null && steal) {
+				// flushPage forces the log past the page's changes first; the
+				// background writer should keep this from being needed. Pages
+				// another transaction may be changing are left alone; the
+				// evicting transaction is not changing any page meanwhile.
+				if (writer != null) {
+					writer.wake();
+				}
+				pid = policy.evict(new ReplacementPolicy.EvictionFilter() {
+					public boolean canEvict(PageId pid) {
+						return !lockManager.isWriteLocked(pid, tid);
+					}
+				});
+			}
+			if (pid == null) {
+				break;
+			}
 			try {
-				if(buffers.get(pid).isDirty() == null){
-					flushPage(pid);
+				flushPage(pid);
+			} catch (IOException e) {
+				DbException dbe = new DbException("cannot write page " + pid.getPageNumber()
+						+ " of table " + pid.getTableId() + " out: " + e.getMessage());
+				dbe.initCause(e);
+				throw dbe;
+			}
+			// the page goes only if it is still clean, as it may have been
+			// changed since it was written; once it is gone, a transaction
+			// that got it before finds it is no longer resident
+			latchPage(pid);
+			try {
+				Page p = buffers.get(pid);
+				if (p == null || p.isDirty() == null) {
 					buffers.remove(pid);
 					return;
 				}
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				policy.recordAccess(pid);
+			} finally {
+				unlatchPage(pid);
 			}
 		}
+		throw new DbException("cannot evict a page: all " + buffers.size() + " pages are dirty");
 	}
 }
@@ -0,0 +1,91 @@
+package simpledb;
+
+/**
+ * BufferRing is a small private set of page slots used by a single sequential
+ * scan. Pages that the scan reads from disk go into the ring instead of the
+ * shared BufferPool, and are recycled round robin, so a scan over a large
+ * table only ever occupies a few pages of memory and does not evict the
+ * working set of other transactions.
+ * <p>
+ * Pages are still locked through the BufferPool's LockManager. Because a
+ * page is only read into a ring when it is not resident in the pool, and
+ * dirty pages are always resident, a ring never holds a stale copy.
+ * <p>
+ * A ring for a read-only transaction may hold views of a file's memory
+ * mapping instead of copies of its pages. A view follows later writes to
+ * the file, so its tuples are only stable while the transaction holds its
+ * locks on the page.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ * @see BufferPool#getScanRing(int)
+ */
+public class BufferRing {
+
+	/** Default number of pages in a ring. */
+	public static final int DEFAULT_RING_SIZE = 8;
+
+	private final Page[] slots;
+	private final boolean views;
+	private int next = 0;
+
+	public BufferRing() {
+		this(DEFAULT_RING_SIZE);
+	}
+
+	public BufferRing(int size) {
+		this(size, false);
+	}
+
+	/**
+	 * @param views
+	 *            whether pages of memory mapped files are read into the ring
+	 *            as views of the mapping rather than copies
+	 */
+	public BufferRing(int size, boolean views) {
+		if (size < 1) {
+			throw new IllegalArgumentException("ring size must be positive");
+		}
+		this.slots = new Page[size];
+		this.views = views;
+	}
+
+	/**
+	 * @return true if pages of memory mapped files are read into the ring as
+	 *         views of the mapping
+	 */
+	public boolean holdsViews() {
+		return views;
+	}
+
+	/**
+	 * @return the copy of the specified page held in this ring, or null
+	 */
+	public synchronized Page get(PageId pid) {
+		for (Page p : slots) {
+			if (p != null && p.getId().equals(pid)) {
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Put a page in the ring, replacing the least recently added one.
+	 */
+	public synchronized void add(Page p) {
+		slots[next] = p;
+		next = (next + 1) % slots.length;
+	}
+
+	/** Drop every page held by this ring. */
+	public synchronized void clear() {
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = null;
+		}
+		next = 0;
+	}
+
+	public int size() {
+		return slots.length;
+	}
+}
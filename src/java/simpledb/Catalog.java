@@ -70,10 +70,23 @@ public class Catalog {
 	 */
 	public void addTable(DbFile file, String name, String pkeyField) {
 		// some code goes here
+		Table old;
 		synchronized (this) {
 			Table tb = new Table(file, name, pkeyField);
 			Integer id = new Integer(file.getId());
-			this.tables.put(id, tb);
+			old = this.tables.put(id, tb);
+		}
+		// a file replaced by another one for the same table is done with
+		if (old != null && old.getFile() != file) {
+			close(old.getFile());
+		}
+	}
+
+	private static void close(DbFile file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
@@ -192,12 +205,17 @@ public class Catalog {
 		}
 	}
 
-	/** Delete all tables from the catalog */
+	/** Delete all tables from the catalog, closing their files */
 	public void clear() {
 		// some code goes here
+		List<Table> removed;
 		synchronized (this) {
+			removed = new ArrayList<Table>(this.tables.values());
 			this.tables.clear();
 		}
+		for (Table tb : removed) {
+			close(tb.getFile());
+		}
 	}
 
 	/**
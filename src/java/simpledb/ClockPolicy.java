@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular array of
+ * frames, each with a reference bit that is set on access. The clock hand
+ * sweeps the frames, clearing reference bits, and evicts the first evictable
+ * page whose bit is already clear.
+ *
+ * @Threadsafe
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+	private final ArrayList<PageId> frames;
+	private final ArrayList<Boolean> referenced;
+	private final Map<PageId, Integer> frameOf;
+	private final LinkedList<Integer> freeFrames;
+	private int hand = 0;
+
+	/**
+	 * @param numPages
+	 *            expected number of resident pages; the clock grows past this
+	 *            if the BufferPool ever holds more
+	 */
+	public ClockPolicy(int numPages) {
+		this.frames = new ArrayList<PageId>(numPages);
+		this.referenced = new ArrayList<Boolean>(numPages);
+		this.frameOf = new HashMap<PageId, Integer>();
+		this.freeFrames = new LinkedList<Integer>();
+	}
+
+	public synchronized void recordAccess(PageId pid) {
+		Integer frame = frameOf.get(pid);
+		if (frame != null) {
+			referenced.set(frame, true);
+			return;
+		}
+		if (freeFrames.isEmpty()) {
+			frame = frames.size();
+			frames.add(pid);
+			referenced.add(true);
+		} else {
+			frame = freeFrames.removeFirst();
+			frames.set(frame, pid);
+			referenced.set(frame, true);
+		}
+		frameOf.put(pid, frame);
+	}
+
+	public synchronized PageId evict(EvictionFilter filter) {
+		// two full sweeps: the first may only clear reference bits
+		int steps = 2 * frames.size();
+		for (int i = 0; i < steps; i++) {
+			int frame = hand;
+			hand = (hand + 1) % frames.size();
+			PageId pid = frames.get(frame);
+			if (pid == null || !filter.canEvict(pid)) {
+				continue;
+			}
+			if (referenced.get(frame)) {
+				referenced.set(frame, false);
+				continue;
+			}
+			clearFrame(frame);
+			return pid;
+		}
+		return null;
+	}
+
+	public synchronized void remove(PageId pid) {
+		Integer frame = frameOf.get(pid);
+		if (frame != null) {
+			clearFrame(frame);
+		}
+	}
+
+	private void clearFrame(int frame) {
+		frameOf.remove(frames.get(frame));
+		frames.set(frame, null);
+		referenced.set(frame, false);
+		freeFrames.add(frame);
+	}
+}
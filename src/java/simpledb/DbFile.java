@@ -28,6 +28,15 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages to disk. Pages with adjacent page numbers
+     * should be written together rather than one write per page.
+     *
+     * @param pages The pages to write, in any order.
+     * @throws IOException if a write fails
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -83,6 +92,14 @@ public interface DbFile {
      */
     public int getId();
     
+    /**
+     * Release the file handles this DbFile holds.  A DbFile that is used
+     * again after being closed reopens its files.
+     *
+     * @throws IOException if closing a file fails
+     */
+    public void close() throws IOException;
+
     /**
      * Returns the TupleDesc of the table stored in this DbFile.
      * @return TupleDesc of this DbFile.
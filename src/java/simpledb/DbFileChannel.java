@@ -0,0 +1,278 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * DbFileChannel is the long-lived handle a DbFile uses for page I/O. It keeps
+ * one FileChannel open for the lifetime of the DbFile and reads and writes
+ * pages with positional operations, so concurrent callers neither reopen the
+ * file nor contend on a shared file pointer.
+ * <p>
+ * The file is opened read-only until the first write, so read-only files
+ * can be read, and it is only created by a write: reading a file that does
+ * not exist finds it empty.
+ * <p>
+ * A FileChannel is closed for every user when a thread blocked in it is
+ * interrupted, for instance while its transaction is being aborted. The
+ * channel is therefore reopened transparently whenever it is found closed.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+	private final File file;
+	private volatile FileChannel channel = null;
+	// whether channel was opened for writing
+	private volatile boolean writable = false;
+	// serializes writes that have to move the channel position
+	private final Object positionLock = new Object();
+
+	/**
+	 * @param f
+	 *            the file to read and write; it is created on the first write
+	 *            if it does not exist
+	 */
+	public DbFileChannel(File f) {
+		this.file = f;
+	}
+
+	/**
+	 * Returns the open channel, opening the file for writing if write is
+	 * set, or null if only reading and the file does not exist. A channel
+	 * opened read-only is replaced by a writable one on the first write;
+	 * readers still using the old one find it closed and retry.
+	 */
+	private FileChannel channel(boolean write) throws IOException {
+		FileChannel c = channel;
+		if (c == null || !c.isOpen() || (write && !writable)) {
+			synchronized (this) {
+				c = channel;
+				if (c == null || !c.isOpen() || (write && !writable)) {
+					if (!write && !file.exists()) {
+						return null;
+					}
+					boolean w = write || writable;
+					FileChannel opened = new RandomAccessFile(file, w ? "rw" : "r").getChannel();
+					if (c != null) {
+						c.close();
+					}
+					c = opened;
+					channel = c;
+					writable = w;
+				}
+			}
+		}
+		return c;
+	}
+
+	/** Clears the interrupt that closed the channel so it can be retried. */
+	private boolean clearInterrupt(ClosedChannelException e) {
+		return e instanceof ClosedByInterruptException && Thread.interrupted();
+	}
+
+	/**
+	 * Read up to buf.length bytes starting at the specified file position.
+	 *
+	 * @return the number of bytes read, which is less than buf.length only at
+	 *         the end of the file, or -1 if position is at or past the end
+	 */
+	public int read(byte[] buf, long position) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				ByteBuffer bb = ByteBuffer.wrap(buf);
+				try {
+					FileChannel c = channel(false);
+					if (c == null) {
+						return buf.length > 0 ? -1 : 0;
+					}
+					while (bb.hasRemaining()) {
+						int n = c.read(bb, position + bb.position());
+						if (n < 0) {
+							break;
+						}
+					}
+					return bb.position() == 0 && buf.length > 0 ? -1 : bb.position();
+				} catch (ClosedChannelException e) {
+					interrupted |= clearInterrupt(e);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Write all of data starting at the specified file position.
+	 */
+	public void write(byte[] data, long position) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				ByteBuffer bb = ByteBuffer.wrap(data);
+				try {
+					FileChannel c = channel(true);
+					while (bb.hasRemaining()) {
+						c.write(bb, position + bb.position());
+					}
+					return;
+				} catch (ClosedChannelException e) {
+					interrupted |= clearInterrupt(e);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Write several buffers back to back starting at the specified file
+	 * position, using a single gathering write where the OS allows it.
+	 */
+	public void write(ByteBuffer[] data, long position) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				for (ByteBuffer bb : data) {
+					bb.rewind();
+				}
+				try {
+					FileChannel c = channel(true);
+					synchronized (positionLock) {
+						c.position(position);
+						long remaining = 0;
+						for (ByteBuffer bb : data) {
+							remaining += bb.remaining();
+						}
+						while (remaining > 0) {
+							remaining -= c.write(data);
+						}
+					}
+					return;
+				} catch (ClosedChannelException e) {
+					interrupted |= clearInterrupt(e);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Write pages of pageSize bytes, page number n going to file position
+	 * base + n * pageSize. Pages with adjacent page numbers are written with
+	 * one vectored write.
+	 */
+	public void writePages(List<Page> pages, long base, int pageSize) throws IOException {
+		List<Page> sorted = new ArrayList<Page>(pages);
+		Collections.sort(sorted, new Comparator<Page>() {
+			public int compare(Page a, Page b) {
+				return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+			}
+		});
+		int start = 0;
+		while (start < sorted.size()) {
+			int end = start + 1;
+			while (end < sorted.size() && sorted.get(end).getId().getPageNumber()
+					== sorted.get(end - 1).getId().getPageNumber() + 1) {
+				end++;
+			}
+			long position = base + (long) sorted.get(start).getId().getPageNumber() * pageSize;
+			if (end - start == 1) {
+				write(sorted.get(start).getPageData(), position);
+			} else {
+				ByteBuffer[] run = new ByteBuffer[end - start];
+				for (int i = start; i < end; i++) {
+					run[i - start] = ByteBuffer.wrap(sorted.get(i).getPageData());
+				}
+				write(run, position);
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * Map the first size bytes of the file read-only into memory. The mapping
+	 * stays valid after the channel is closed and reflects later writes to
+	 * the mapped range.
+	 *
+	 * @throws FileNotFoundException
+	 *             if the file does not exist
+	 */
+	public MappedByteBuffer map(long size) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					FileChannel c = channel(false);
+					if (c == null) {
+						throw new FileNotFoundException(file.getPath());
+					}
+					return c.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				} catch (ClosedChannelException e) {
+					interrupted |= clearInterrupt(e);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the current size of the file in bytes, 0 if it does not exist
+	 */
+	public long size() throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					FileChannel c = channel(false);
+					return c == null ? 0 : c.size();
+				} catch (ClosedChannelException e) {
+					interrupted |= clearInterrupt(e);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Force all written data to the storage device. */
+	public void force() throws IOException {
+		FileChannel c = channel(false);
+		if (c != null) {
+			c.force(true);
+		}
+	}
+
+	/** Close the channel. It is reopened if the file is used again. */
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+			writable = false;
+		}
+	}
+}
@@ -11,9 +11,13 @@ public class Filter extends Operator {
     private static final long serialVersionUID = 1L;
     private Predicate pred;
     private OpIterator child;
+    // the child is a scan that applies pred itself
+    transient private boolean childFilters = false;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
-     * tuples to filter from.
+     * tuples to filter from. If the child is a sequential scan given this
+     * very predicate (see {@link SeqScan#setPredicate}), as the planner does,
+     * its tuples are returned without testing them again.
      * 
      * @param p
      *            The predicate to filter tuples with
@@ -43,6 +47,7 @@ public class Filter extends Operator {
         // some code goes here
     	super.open();
     	child.open();
+    	childFilters = child instanceof SeqScan && ((SeqScan) child).getPredicate() == pred;
     }
 
     public void close() {
@@ -71,7 +76,7 @@ public class Filter extends Operator {
         //return null;
     	while (child.hasNext()){
     		Tuple t = child.next();
-    		if(pred.filter(t)){
+    		if(childFilters || pred.filter(t)){
     			return t;
     		}
     	}
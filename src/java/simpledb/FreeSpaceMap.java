@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records how many empty tuple slots each page of a HeapFile
+ * has, so that an insert can go straight to a page with room instead of
+ * locking and inspecting every page of the file.
+ * <p>
+ * The map is a hint. It is updated whenever a page is read, written,
+ * inserted into or deleted from, but a transaction that aborts may leave it
+ * stale, so callers must check the page itself once they have locked it.
+ * Pages the map knows nothing about are treated as possibly having room.
+ * <p>
+ * The map is kept in a file next to the heap file, named after it with a
+ * ".fsm" suffix. It is saved when the heap file is closed, and only once
+ * something has been inserted into the file, so files that are only read
+ * get no map file. The file starts with the length and modification time the
+ * heap file had when the map was last saved, followed by the number of pages
+ * and a two byte free slot count per page. A map whose heap file has since
+ * been changed, for instance by writes after the save, is ignored.
+ *
+ * @see HeapFile#insertTuple
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+	/** Suffix of the file the map of a heap file is stored in. */
+	public static final String SUFFIX = ".fsm";
+
+	private static final int HEADER_SIZE = 8 + 8 + 4;
+	// free slot count of a page the map knows nothing about
+	private static final short UNKNOWN = -1;
+
+	private final File heapFile;
+	private final DbFileChannel channel;
+	private short[] free = new short[0];
+	// pages with a non zero or unknown free slot count, among the first
+	// tracked pages
+	private final BitSet candidates = new BitSet();
+	private int tracked = 0;
+	// where the last search for room stopped
+	private int hint = 0;
+	private boolean loaded = false;
+	// whether an insert has searched the map, so it is worth saving
+	private boolean used = false;
+	// range of entries changed since the map was last saved, and the number
+	// of entries in the saved map
+	private int dirtyFrom = Integer.MAX_VALUE;
+	private int dirtyTo = -1;
+	private int savedPages = 0;
+
+	/**
+	 * @param heapFile
+	 *            the file of the HeapFile this map describes
+	 */
+	public FreeSpaceMap(File heapFile) {
+		this.heapFile = heapFile;
+		this.channel = new DbFileChannel(mapFile());
+	}
+
+	private File mapFile() {
+		return new File(heapFile.getPath() + SUFFIX);
+	}
+
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (!mapFile().exists()) {
+			return;
+		}
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			if (channel.read(header, 0) < HEADER_SIZE) {
+				return;
+			}
+			ByteBuffer bb = ByteBuffer.wrap(header);
+			long length = bb.getLong();
+			long modified = bb.getLong();
+			int pages = bb.getInt();
+			if (length != heapFile.length() || modified != heapFile.lastModified()) {
+				return;
+			}
+			byte[] counts = new byte[pages * 2];
+			if (pages > 0 && channel.read(counts, HEADER_SIZE) < counts.length) {
+				return;
+			}
+			ensureCapacity(pages);
+			ByteBuffer cb = ByteBuffer.wrap(counts);
+			for (int i = 0; i < pages; i++) {
+				free[i] = cb.getShort();
+				candidates.set(i, free[i] != 0);
+			}
+			tracked = pages;
+			savedPages = pages;
+		} catch (IOException e) {
+			// start from an empty map; it is only a hint
+			e.printStackTrace();
+		}
+	}
+
+	private void ensureCapacity(int pages) {
+		if (pages > free.length) {
+			int old = free.length;
+			free = Arrays.copyOf(free, Math.max(pages, old * 2));
+			Arrays.fill(free, old, free.length, UNKNOWN);
+		}
+	}
+
+	/**
+	 * Find a page that may have an empty slot, starting where the last
+	 * search left off.
+	 *
+	 * @param numPages
+	 *            the number of pages in the heap file
+	 * @return a page number less than numPages, or -1 if every page is known
+	 *         to be full
+	 */
+	public synchronized int findPage(int numPages) {
+		load();
+		used = true;
+		ensureCapacity(numPages);
+		// pages added to the file since the last search
+		for (; tracked < numPages; tracked++) {
+			candidates.set(tracked, free[tracked] != 0);
+		}
+		int p = candidates.nextSetBit(Math.min(hint, numPages));
+		if (p < 0 || p >= numPages) {
+			p = candidates.nextSetBit(0);
+		}
+		if (p < 0 || p >= numPages) {
+			return -1;
+		}
+		hint = p;
+		return p;
+	}
+
+	/**
+	 * Record the number of empty slots of a page.
+	 */
+	public synchronized void update(int pageNo, int emptySlots) {
+		load();
+		ensureCapacity(pageNo + 1);
+		short n = (short) Math.min(emptySlots, Short.MAX_VALUE);
+		if (free[pageNo] == n) {
+			return;
+		}
+		free[pageNo] = n;
+		candidates.set(pageNo, n != 0);
+		dirtyFrom = Math.min(dirtyFrom, pageNo);
+		dirtyTo = Math.max(dirtyTo, pageNo);
+	}
+
+	/**
+	 * Close the map file. It is reopened if the map is used again.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Write the entries changed since the last save, together with the
+	 * current length and modification time of the heap file. Called when
+	 * the heap file is closed. Does nothing if the map has no file and was
+	 * never used to find room for an insert.
+	 *
+	 * @param numPages
+	 *            the number of pages in the heap file
+	 */
+	public synchronized void save(int numPages) throws IOException {
+		if (!used && !mapFile().exists()) {
+			return;
+		}
+		load();
+		ensureCapacity(numPages);
+		// entries past the end of the saved map are written even if unknown
+		int from = Math.min(dirtyFrom, savedPages);
+		int to = numPages > savedPages ? numPages - 1 : Math.min(dirtyTo, numPages - 1);
+		if (to >= from) {
+			ByteBuffer counts = ByteBuffer.allocate((to - from + 1) * 2);
+			for (int i = from; i <= to; i++) {
+				counts.putShort(free[i]);
+			}
+			channel.write(counts.array(), HEADER_SIZE + 2L * from);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(heapFile.length());
+		header.putLong(heapFile.lastModified());
+		header.putInt(numPages);
+		channel.write(header.array(), 0);
+		savedPages = numPages;
+		dirtyFrom = Integer.MAX_VALUE;
+		dirtyTo = -1;
+	}
+}
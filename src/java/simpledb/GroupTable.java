@@ -0,0 +1,462 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * GroupTable holds the running aggregates of an aggregation: the count, sum,
+ * minimum and maximum of the values of every group, in primitive arrays
+ * indexed by an open-addressing hash table on the group value. It takes
+ * memory in proportion to the number of groups, not of tuples.
+ * <p>
+ * When the groups outgrow the memory budget, the size of the BufferPool by
+ * default, their aggregates are written to spill files partitioned on the
+ * hash of the group value, and the table starts over empty. The results then
+ * combine the partitions one at a time, splitting a partition again with
+ * another hash if it still has too many groups. A failure to spill is
+ * reported when the results are opened.
+ */
+class GroupTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	// partitions are split again at most this many times
+	private static final int MAX_LEVELS = 4;
+	// bytes of a slot of the table: hash, key reference, sum, count, min and
+	// max
+	private static final int SLOT_BYTES = 4 + 8 + 8 + 4 + 4 + 4;
+	// bytes of a key object besides its value
+	private static final int KEY_OVERHEAD = 16;
+	private static final int MIN_CAPACITY = 16;
+	// the key of the only group when there is no grouping
+	private static final Field NO_GROUP = new IntField(0);
+
+	private final Type gbfieldtype;
+	private final Aggregator.Op what;
+	private final TupleDesc td;
+	// a group's key, sum split into two ints, count, min and max
+	private final TupleDesc stateTd;
+	private final int level;
+	private long memoryBudget = -1;
+
+	private Field[] keys;
+	private int[] hashes;
+	private long[] sums;
+	private int[] counts;
+	private int[] mins;
+	private int[] maxs;
+	private int size = 0;
+
+	// the partitions being written, and the ones complete when the results
+	// were last read, which are combined with them for the next results
+	transient private SpillFile[] partitions = null;
+	transient private List<SpillFile[]> spilled = new ArrayList<SpillFile[]>();
+	private int numPartitions = 0;
+	// the failure to spill the groups, after which no more are added
+	transient private DbException error = null;
+
+	/**
+	 * Create an empty table.
+	 *
+	 * @param gbfieldtype
+	 *            the type of the group by field, or null if there is no
+	 *            grouping
+	 * @param what
+	 *            the aggregate the results are computed with
+	 * @throws UnsupportedOperationException
+	 *             if the aggregate is not MIN, MAX, SUM, AVG or COUNT
+	 */
+	public GroupTable(Type gbfieldtype, Aggregator.Op what) {
+		this(gbfieldtype, what, 0);
+	}
+
+	private GroupTable(Type gbfieldtype, Aggregator.Op what, int level) {
+		switch (what) {
+		case MIN:
+		case MAX:
+		case SUM:
+		case AVG:
+		case COUNT:
+			break;
+		default:
+			throw new UnsupportedOperationException("operator illegal!");
+		}
+		this.gbfieldtype = gbfieldtype;
+		this.what = what;
+		this.level = level;
+		if (gbfieldtype == null) {
+			td = new TupleDesc(new Type[] { Type.INT_TYPE });
+			stateTd = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE,
+					Type.INT_TYPE, Type.INT_TYPE });
+		} else {
+			td = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE });
+			stateTd = new TupleDesc(new Type[] { gbfieldtype, Type.INT_TYPE, Type.INT_TYPE,
+					Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+		}
+		allocate(MIN_CAPACITY);
+	}
+
+	/** @return the schema of the results */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Set the number of bytes of groups the table holds in memory; the default
+	 * is the size of the BufferPool.
+	 */
+	public void setMemoryBudget(long bytes) {
+		memoryBudget = Spilling.checkMemoryBudget(bytes);
+	}
+
+	private long memoryBudget() {
+		if (memoryBudget > 0) {
+			return memoryBudget;
+		}
+		return Spilling.defaultMemoryBudget();
+	}
+
+	// the number of groups that fit in the budget; the table is at most half
+	// full
+	private long maxGroups() {
+		long keyBytes = KEY_OVERHEAD + (gbfieldtype == null ? 0 : gbfieldtype.getLen());
+		return Math.max(1, memoryBudget() / (2 * SLOT_BYTES + keyBytes));
+	}
+
+	private void allocate(int capacity) {
+		keys = new Field[capacity];
+		hashes = new int[capacity];
+		sums = new long[capacity];
+		counts = new int[capacity];
+		mins = new int[capacity];
+		maxs = new int[capacity];
+		size = 0;
+	}
+
+	// the same for every spill of the table, so partitions can be combined
+	private int numPartitions() {
+		if (numPartitions == 0) {
+			numPartitions = Spilling.numPartitions();
+		}
+		return numPartitions;
+	}
+
+	/**
+	 * Add a value to the aggregates of its group.
+	 *
+	 * @param key
+	 *            the group value, or null if there is no grouping
+	 * @param value
+	 *            the value, which only COUNT may ignore
+	 */
+	public void add(Field key, int value) {
+		if (error != null) {
+			return;
+		}
+		try {
+			merge(key == null ? NO_GROUP : key, value, 1, value, value);
+		} catch (DbException e) {
+			error = e;
+		}
+	}
+
+	// combine the aggregates of a group with the ones in the table
+	private void merge(Field key, long sum, int count, int min, int max) throws DbException {
+		int h = Spilling.mix(key.hashCode());
+		int mask = keys.length - 1;
+		int i = h & mask;
+		while (keys[i] != null) {
+			if (hashes[i] == h && keys[i].equals(key)) {
+				sums[i] += sum;
+				counts[i] += count;
+				mins[i] = Math.min(mins[i], min);
+				maxs[i] = Math.max(maxs[i], max);
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		if (size >= maxGroups() && key != NO_GROUP && level < MAX_LEVELS) {
+			spill();
+			merge(key, sum, count, min, max);
+			return;
+		}
+		keys[i] = key;
+		hashes[i] = h;
+		sums[i] = sum;
+		counts[i] = count;
+		mins[i] = min;
+		maxs[i] = max;
+		if (++size * 2 > keys.length) {
+			grow();
+		}
+	}
+
+	private void grow() {
+		Field[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		long[] oldSums = sums;
+		int[] oldCounts = counts;
+		int[] oldMins = mins;
+		int[] oldMaxs = maxs;
+		allocate(keys.length * 2);
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == null) {
+				continue;
+			}
+			int i = oldHashes[j] & mask;
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = oldKeys[j];
+			hashes[i] = oldHashes[j];
+			sums[i] = oldSums[j];
+			counts[i] = oldCounts[j];
+			mins[i] = oldMins[j];
+			maxs[i] = oldMaxs[j];
+			size++;
+		}
+	}
+
+	// write the groups in the table to the partitions, and empty it
+	private void spill() throws DbException {
+		if (partitions == null) {
+			partitions = new SpillFile[numPartitions()];
+			for (int p = 0; p < partitions.length; p++) {
+				partitions[p] = new SpillFile(stateTd);
+			}
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				partitions[Spilling.partition(hashes[i], level, partitions.length)].add(state(i));
+			}
+		}
+		allocate(MIN_CAPACITY);
+	}
+
+	private Tuple state(int i) {
+		Tuple t = new Tuple(stateTd);
+		int f = 0;
+		if (gbfieldtype != null) {
+			t.setField(f++, keys[i]);
+		}
+		t.setField(f++, new IntField((int) (sums[i] >>> 32)));
+		t.setField(f++, new IntField((int) sums[i]));
+		t.setField(f++, new IntField(counts[i]));
+		t.setField(f++, new IntField(mins[i]));
+		t.setField(f, new IntField(maxs[i]));
+		return t;
+	}
+
+	private void mergeState(Tuple t) throws DbException {
+		int f = 0;
+		Field key = gbfieldtype == null ? NO_GROUP : t.getField(f++);
+		long sumHi = ((IntField) t.getField(f++)).getValue();
+		long sumLo = ((IntField) t.getField(f++)).getValue() & 0xffffffffL;
+		int count = ((IntField) t.getField(f++)).getValue();
+		int min = ((IntField) t.getField(f++)).getValue();
+		int max = ((IntField) t.getField(f)).getValue();
+		merge(key, (sumHi << 32) | sumLo, count, min, max);
+	}
+
+	private Tuple result(int i) {
+		int value;
+		switch (what) {
+		case MIN:
+			value = mins[i];
+			break;
+		case MAX:
+			value = maxs[i];
+			break;
+		case SUM:
+			value = (int) sums[i];
+			break;
+		case AVG:
+			value = (int) (sums[i] / counts[i]);
+			break;
+		default:
+			value = counts[i];
+			break;
+		}
+		Tuple t = new Tuple(td);
+		if (gbfieldtype == null) {
+			t.setField(0, new IntField(value));
+		} else {
+			t.setField(0, keys[i]);
+			t.setField(1, new IntField(value));
+		}
+		return t;
+	}
+
+	private List<Tuple> results() {
+		List<Tuple> results = new ArrayList<Tuple>(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				results.add(result(i));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return an iterator over the results of the groups added so far. If
+	 *         the groups were spilled, all of them are spilled, and the
+	 *         partitions are combined when the iterator is first opened. If
+	 *         spilling failed, opening the iterator throws the failure.
+	 */
+	public OpIterator iterator() {
+		if (error == null && partitions == null && spilled.isEmpty()) {
+			return new TupleIterator(td, results());
+		}
+		if (error == null && (partitions != null || size > 0)) {
+			try {
+				spill();
+				spilled.add(partitions);
+				partitions = null;
+			} catch (DbException e) {
+				error = e;
+			}
+		}
+		return new SpilledIterator(new ArrayList<SpillFile[]>(spilled), error);
+	}
+
+	/**
+	 * Delete the files the groups were spilled to, and empty the table.
+	 * Iterators over the groups spilled so far cannot be opened afterwards.
+	 */
+	public void close() {
+		if (partitions != null) {
+			for (SpillFile p : partitions) {
+				p.delete();
+			}
+			partitions = null;
+		}
+		for (SpillFile[] spill : spilled) {
+			for (SpillFile p : spill) {
+				p.delete();
+			}
+		}
+		spilled.clear();
+		error = null;
+		allocate(MIN_CAPACITY);
+	}
+
+	// write the results of the groups in spill files of states to out; the
+	// files are deleted if they are the table's own
+	private void combine(List<SpillFile> ins, SpillFile out, boolean delete)
+			throws DbException, TransactionAbortedException {
+		for (SpillFile in : ins) {
+			DbFileIterator it = in.iterator();
+			it.open();
+			while (it.hasNext()) {
+				mergeState(it.next());
+			}
+			it.close();
+			if (delete) {
+				in.delete();
+			}
+		}
+		if (partitions == null) {
+			for (Tuple t : results()) {
+				out.add(t);
+			}
+		} else {
+			spill();
+			for (SpillFile p : partitions) {
+				subTable().combine(Collections.singletonList(p), out, true);
+			}
+			partitions = null;
+		}
+		allocate(MIN_CAPACITY);
+	}
+
+	// a table for a partition of this one's groups
+	private GroupTable subTable() {
+		GroupTable sub = new GroupTable(gbfieldtype, what, level + 1);
+		sub.memoryBudget = memoryBudget;
+		return sub;
+	}
+
+	/**
+	 * The results of spilled groups, which are combined into a file of results
+	 * when it is opened. Every partition is combined with the same partition
+	 * of the earlier spills. The file of results is deleted when the iterator
+	 * is closed; the partitions stay with the table until it is closed.
+	 * Opening it throws the failure to spill the groups, if there was one.
+	 */
+	private class SpilledIterator implements OpIterator {
+
+		private static final long serialVersionUID = 1L;
+		transient private List<SpillFile[]> spills;
+		transient private SpillFile results = null;
+		transient private DbFileIterator it = null;
+		transient private DbException error;
+
+		SpilledIterator(List<SpillFile[]> spills, DbException error) {
+			this.spills = spills;
+			this.error = error;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			if (error != null) {
+				throw error;
+			}
+			if (results == null) {
+				results = new SpillFile(td);
+				boolean done = false;
+				try {
+					for (int p = 0; p < numPartitions; p++) {
+						List<SpillFile> ins = new ArrayList<SpillFile>();
+						for (SpillFile[] spill : spills) {
+							ins.add(spill[p]);
+						}
+						subTable().combine(ins, results, false);
+					}
+					done = true;
+				} finally {
+					if (!done) {
+						results.delete();
+						results = null;
+					}
+				}
+			}
+			it = results.iterator();
+			it.open();
+		}
+
+		public boolean hasNext() throws DbException, TransactionAbortedException {
+			if (it == null) {
+				throw new IllegalStateException("iterator is not open");
+			}
+			return it.hasNext();
+		}
+
+		public Tuple next() throws DbException, TransactionAbortedException {
+			if (it == null) {
+				throw new IllegalStateException("iterator is not open");
+			}
+			return it.next();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			if (it == null) {
+				throw new IllegalStateException("iterator is not open");
+			}
+			it.rewind();
+		}
+
+		public TupleDesc getTupleDesc() {
+			return td;
+		}
+
+		public void close() {
+			if (it != null) {
+				it.close();
+				it = null;
+			}
+			if (results != null) {
+				results.delete();
+				results = null;
+			}
+		}
+	}
+}
@@ -3,17 +3,63 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational equi-join with a hybrid
+ * hash join. The tuples of the outer (left) child are loaded into a hash
+ * table on their join field, and the inner (right) child is read once,
+ * probing the table with every tuple.
+ * <p>
+ * The hash table may use as much memory as the BufferPool. When the outer
+ * child does not fit, both children are split on the hash of their join
+ * field into partitions, which are written to spill files, except for the
+ * first partition of the outer child: it stays in memory as long as it fits,
+ * and is joined while the inner child is read. The other pairs of partitions
+ * are joined afterwards, one at a time, partitioning them again with another
+ * hash function if their outer side still does not fit. An outer partition
+ * that does not get smaller, because too many of its tuples have the same
+ * join field, is joined in chunks that fit in memory.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+    // times a partition is split again before it is joined in chunks
+    private static final int MAX_LEVELS = 4;
+
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    /** A pair of partitions of the two children, to be joined. */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+    }
+
+    // the outer tuples in memory, by join field, and their size
+    transient private HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+    transient private long mapBytes = 0;
+    transient private Iterator<Tuple> listIt = null;
+    // the inner tuples of the current pass
+    transient private DbFileIterator probe = null;
+    // the partitions of the current pass, or null if its outer tuples fit
+    // in memory; only the tuples of partition memoryPart are in the map
+    transient private int level = 0;
+    transient private SpillFile[] buildParts = null;
+    transient private SpillFile[] probeParts = null;
+    transient private int memoryPart = -1;
+    // the rest of an outer partition that is joined in chunks
+    transient private DbFileIterator buildChunks = null;
+    // the partitions joined in the current pass, or null for the children
+    transient private Partition current = null;
+    transient private Deque<Partition> pending = new ArrayDeque<Partition>();
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -50,52 +96,238 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
+    // bytes of outer tuples the hash table may hold
+    private static long memoryBudget() {
+        return Spilling.defaultMemoryBudget();
+    }
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+    // the partition of a join field at the specified level
+    private static int partition(Field f, int level, int partitions) {
+        return Spilling.partition(f.hashCode(), level, partitions);
+    }
+
+    // reads a child, which the join opens, rewinds and closes
+    private static DbFileIterator iterator(final OpIterator child) {
+        return new AbstractDbFileIterator() {
+            public void open() {
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+
+            public void rewind() {
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                return child.hasNext() ? child.next() : null;
+            }
+        };
+    }
+
+    private void add(Tuple t1) {
+        Field f = t1.getField(pred.getField1());
+        ArrayList<Tuple> list = map.get(f);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(f, list);
+        }
+        list.add(t1);
+        mapBytes += t1.getTupleDesc().getSize();
+    }
+
+    /**
+     * Load the outer tuples of a pass into memory, partitioning them if they
+     * do not fit.
+     *
+     * @param build
+     *            the outer tuples, open
+     * @param probeIn
+     *            the inner tuples, open; rewindable if level > 0
+     */
+    private void build(DbFileIterator build, DbFileIterator probeIn, int level)
+            throws DbException, TransactionAbortedException {
+        this.level = level;
+        this.probe = probeIn;
+        long budget = memoryBudget();
+        while (build.hasNext()) {
+            Tuple t1 = build.next();
+            if (buildParts == null) {
+                add(t1);
+                if (mapBytes > budget) {
+                    if (level >= MAX_LEVELS) {
+                        buildChunks = build;
+                        return;
+                    }
+                    partitionMap();
+                }
+            } else {
+                int p = partition(t1.getField(pred.getField1()), level, buildParts.length);
+                if (p == memoryPart) {
+                    add(t1);
+                    if (mapBytes > budget) {
+                        spillMemoryPart();
+                    }
+                } else {
+                    buildParts[p].add(t1);
+                }
+            }
+        }
+        build.close();
+    }
+
+    // start partitioning a pass, keeping only the first partition in memory
+    private void partitionMap() throws DbException {
+        int n = Spilling.numPartitions();
+        buildParts = new SpillFile[n];
+        probeParts = new SpillFile[n];
+        for (int i = 0; i < n; i++) {
+            buildParts[i] = new SpillFile(child1.getTupleDesc());
+            probeParts[i] = new SpillFile(child2.getTupleDesc());
+        }
+        memoryPart = 0;
+        HashMap<Field, ArrayList<Tuple>> all = map;
+        map = new HashMap<Field, ArrayList<Tuple>>();
+        mapBytes = 0;
+        for (Map.Entry<Field, ArrayList<Tuple>> e : all.entrySet()) {
+            int p = partition(e.getKey(), level, n);
+            for (Tuple t1 : e.getValue()) {
+                if (p == memoryPart) {
+                    add(t1);
+                } else {
+                    buildParts[p].add(t1);
+                }
+            }
+        }
+        if (mapBytes > memoryBudget()) {
+            spillMemoryPart();
+        }
+    }
+
+    // the partition in memory does not fit either
+    private void spillMemoryPart() throws DbException {
+        for (ArrayList<Tuple> list : map.values()) {
+            for (Tuple t1 : list) {
+                buildParts[memoryPart].add(t1);
+            }
+        }
+        map.clear();
+        mapBytes = 0;
+        memoryPart = -1;
+    }
+
+    // load the next chunk of an outer partition that does not fit
+    private boolean loadChunk() throws DbException, TransactionAbortedException {
+        map.clear();
+        mapBytes = 0;
+        long budget = memoryBudget();
+        while (mapBytes <= budget && buildChunks.hasNext()) {
+            add(buildChunks.next());
+        }
+        return !map.isEmpty();
+    }
+
+    /**
+     * The inner tuples of the current pass have all been read: go on with the
+     * next chunk of the outer tuples, or with the next pair of partitions.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        if (buildChunks != null) {
+            if (loadChunk()) {
+                probe.rewind();
                 return true;
+            }
+            buildChunks.close();
+            buildChunks = null;
+        }
+        if (buildParts != null) {
+            for (int p = 0; p < buildParts.length; p++) {
+                if (p != memoryPart && buildParts[p].size() > 0 && probeParts[p].size() > 0) {
+                    pending.push(new Partition(buildParts[p], probeParts[p], level + 1));
+                } else {
+                    buildParts[p].delete();
+                    probeParts[p].delete();
+                }
+            }
+            buildParts = null;
+            probeParts = null;
+            memoryPart = -1;
+        }
+        map.clear();
+        mapBytes = 0;
+        probe.close();
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+        }
+        current = pending.poll();
+        if (current == null) {
+            probe = null;
+            return false;
         }
-        return cnt > 0;
+        DbFileIterator build = current.build.iterator();
+        build.open();
+        DbFileIterator probeIn = current.probe.iterator();
+        probeIn.open();
+        build(build, probeIn, current.level);
+        return true;
+    }
 
+    // remove the spill files and forget the state of the join
+    private void cleanup() {
+        if (buildChunks != null) {
+            buildChunks.close();
+            buildChunks = null;
+        }
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        if (buildParts != null) {
+            for (int p = 0; p < buildParts.length; p++) {
+                buildParts[p].delete();
+                probeParts[p].delete();
+            }
+            buildParts = null;
+            probeParts = null;
+        }
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+            current = null;
+        }
+        for (Partition part : pending) {
+            part.build.delete();
+            part.probe.delete();
+        }
+        pending.clear();
+        map.clear();
+        mapBytes = 0;
+        memoryPart = -1;
+        listIt = null;
+        t2 = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build(iterator(child1), iterator(child2), 0);
         super.open();
     }
 
     public void close() {
         super.close();
+        cleanup();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
         child1.rewind();
         child2.rewind();
+        build(iterator(child1), iterator(child2), 0);
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -114,9 +346,38 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return merge(listIt.next(), t2);
+            }
+            listIt = null;
+            if (probe == null) {
+                return null;
+            }
+            if (!probe.hasNext()) {
+                if (!nextPass()) {
+                    return null;
+                }
+                continue;
+            }
+            t2 = probe.next();
+            Field f = t2.getField(pred.getField2());
+            if (probeParts != null) {
+                int p = partition(f, level, probeParts.length);
+                if (p != memoryPart) {
+                    probeParts[p].add(t2);
+                    continue;
+                }
+            }
+            ArrayList<Tuple> l = map.get(f);
+            if (l != null) {
+                listIt = l.iterator();
+            }
+        }
+    }
 
+    private Tuple merge(Tuple t1, Tuple t2) {
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -127,36 +388,6 @@ public class HashEquiJoin extends Operator {
         for (int i = 0; i < td2n; i++)
             t.setField(td1n + i, t2.getField(i));
         return t;
-
-    }
-
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 
@@ -20,6 +22,10 @@ public class HeapFile implements DbFile {
 	private final File hf;
 	private final TupleDesc td;
 	private final int tableid;
+	private final DbFileChannel channel;
+	private final boolean memoryMapped;
+	private MappedByteBuffer mapping = null; // protected by this
+	private final FreeSpaceMap freeSpace;
 	/**
 	 * Constructs a heap file backed by the specified file.
 	 *
@@ -28,10 +34,40 @@ public class HeapFile implements DbFile {
 	 *            file.
 	 */
 	public HeapFile(File f, TupleDesc td) {
+		this(f, td, false);
+	}
+
+	/**
+	 * Constructs a heap file backed by the specified file, optionally reading
+	 * it through a memory mapping. Intended for read-mostly tables, e.g.
+	 * lookup tables written once with HeapFileEncoder: pages are copied
+	 * straight out of the OS page cache instead of being read with a system
+	 * call, and sequential scans by read-only transactions neither cache
+	 * pages in the BufferPool nor copy them, but read the tuples from the
+	 * mapping. Writes still go through the file channel and are visible in
+	 * the mapping. Files of 2GB or more are read without the mapping.
+	 *
+	 * @param f
+	 *            the file that stores the on-disk backing store for this heap
+	 *            file.
+	 * @param memoryMapped
+	 *            whether to read pages through a memory mapping
+	 */
+	public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
 		// some code goes here
 		this.hf = f;
 		this.td = td;
 		this.tableid = f.getAbsoluteFile().hashCode();
+		this.channel = new DbFileChannel(f);
+		this.memoryMapped = memoryMapped;
+		this.freeSpace = new FreeSpaceMap(f);
+	}
+
+	/**
+	 * Returns true if this HeapFile reads its pages through a memory mapping.
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
 	}
 
 	/**
@@ -70,42 +106,107 @@ public class HeapFile implements DbFile {
 		return td;
 	}
 
-	// see DbFile.java for javadocs
+	/**
+	 * Read the specified page. A page read from the memory mapping is
+	 * copied: it may be cached in the BufferPool, where it has to outlive
+	 * writes to the file, which change the mapping.
+	 *
+	 * @see DbFile#readPage
+	 */
 	public Page readPage(PageId pid) {
 		// some code goes here
+		return readPage(pid, false);
+	}
+
+	/**
+	 * Read the specified page, as a view of the memory mapping if this file
+	 * is read through one. The page reads its tuples straight from the
+	 * mapping, so it must not be cached, and it is only stable while its
+	 * reader holds a lock on it.
+	 *
+	 * @see BufferRing#holdsViews()
+	 */
+	Page readPageView(PageId pid) {
+		return readPage(pid, true);
+	}
+
+	private Page readPage(PageId pid, boolean view) {
 		HeapPageId id = (HeapPageId) pid;
-		RandomAccessFile raf = null;
 		HeapPage page = null;
 		try {
-			raf = new RandomAccessFile(hf, "r");
-			byte pageBuf[] = new byte[BufferPool.getPageSize()];
-			raf.seek(1L*id.getPageNumber() * BufferPool.getPageSize());
-			raf.read(pageBuf, 0, BufferPool.getPageSize());
-			 page = new HeapPage(id, pageBuf);
+			long offset = 1L*id.getPageNumber() * BufferPool.getPageSize();
+			ByteBuffer mapped = memoryMapped ? mappedPage(offset) : null;
+			if (mapped != null && view) {
+				page = new HeapPage(id, mapped);
+			} else {
+				byte pageBuf[] = new byte[BufferPool.getPageSize()];
+				if (mapped != null) {
+					mapped.get(pageBuf);
+				} else {
+					channel.read(pageBuf, offset);
+				}
+				page = new HeapPage(id, pageBuf);
+			}
+			 freeSpace.update(id.getPageNumber(), page.getNumEmptySlots());
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 			throw new RuntimeException(e);
-		}finally{
-			try {
-				raf.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
 		}
 		return page;
 	}
 
+	/**
+	 * Returns a view of the page at the given offset in the memory mapping,
+	 * remapping the file if it has grown past the mapping, or null if the
+	 * page is past the end of the file or the file is too large to map.
+	 */
+	private synchronized ByteBuffer mappedPage(long offset) throws IOException {
+		int pageSize = BufferPool.getPageSize();
+		if (mapping == null || offset + pageSize > mapping.capacity()) {
+			long size = channel.size();
+			if (offset + pageSize > size || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			mapping = channel.map(size);
+		}
+		ByteBuffer view = mapping.duplicate();
+		view.position((int) offset);
+		view.limit((int) offset + pageSize);
+		return view.slice();
+	}
+
 	// see DbFile.java for javadocs
 	public void writePage(Page page) throws IOException {
 		// some code goes here
 		// not necessary for lab1
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(hf, "rw");
-		rf.seek(1L * page.getId().getPageNumber() * BufferPool.getPageSize());
-		rf.write(data,  0, BufferPool.getPageSize());
-		rf.close();
+		channel.write(data, 1L * page.getId().getPageNumber() * BufferPool.getPageSize());
+		freeSpace.update(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots());
+	}
+
+	// see DbFile.java for javadocs
+	public void writePages(List<Page> pages) throws IOException {
+		channel.writePages(pages, 0, BufferPool.getPageSize());
+		for (Page page : pages) {
+			freeSpace.update(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots());
+		}
+	}
+
+	/**
+	 * Save the free space map and release the file handles. The map is only
+	 * saved here rather than with every page write.
+	 */
+	public void close() throws IOException {
+		try {
+			freeSpace.save(numPages());
+		} finally {
+			try {
+				freeSpace.close();
+			} finally {
+				channel.close();
+			}
+		}
 	}
 
 	/**
@@ -122,33 +223,114 @@ public class HeapFile implements DbFile {
 		// some code goes here
 		// not necessary for lab1
 		ArrayList<Page> arrayList = new ArrayList<Page>();
-		int i = 0;
-		for(; i < numPages(); ++ i){
-			HeapPageId pid = new HeapPageId(getId(), i);
-			HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-			if(page.getNumEmptySlots() > 0){
-				page.insertTuple(t);
+		BufferPool pool = Database.getBufferPool();
+		// ask the free space map for a page with room, and only lock that one
+		while(true){
+			int pageNo = freeSpace.findPage(numPages());
+			if(pageNo < 0){
+				// extend the file with an empty page; the tuple goes in
+				// through the pool so that it is logged before it is written
+				synchronized(this){
+					pageNo = numPages();
+					writePage(new HeapPage(new HeapPageId(getId(), pageNo), HeapPage.createEmptyPageData()));
+				}
+			}
+			HeapPageId pid = new HeapPageId(getId(), pageNo);
+			boolean held = pool.holdsLock(tid, pid);
+			// in STEAL mode an abort undoes single records, so the record
+			// that goes in is locked exclusively instead of the whole page
+			boolean recordLocks = pool.isStealNoForce();
+			HeapPage page = (HeapPage) (recordLocks
+					? pool.getPageForRecords(tid, pid, Permissions.READ_WRITE)
+					: pool.getPage(tid, pid, Permissions.READ_WRITE));
+			int slot = recordLocks ? lockEmptySlot(tid, page) : -1;
+			if(recordLocks ? slot >= 0 : page.getNumEmptySlots() > 0){
+				// logged under the latch, before a write can pick it up
+				pool.latchPage(pid);
+				try {
+					if(!pool.isResident(page) || (recordLocks && page.isSlotUsed(slot))){
+						// evicted meanwhile, or the slot was filled before
+						// it was locked; try again
+						continue;
+					}
+					if(recordLocks){
+						page.insertTuple(t, slot);
+					}else{
+						page.insertTuple(t);
+					}
+					pool.pageChanged(tid, page);
+				} finally {
+					pool.unlatchPage(pid);
+				}
+				freeSpace.update(pageNo, page.getNumEmptySlots());
 				arrayList.add(page);
-				break;
+				return arrayList;
+			}
+			// the map was out of date; nothing was read or changed, so the
+			// lock can go
+			freeSpace.update(pageNo, 0);
+			if(!held){
+				pool.releasePage(tid, pid);
 			}
 		}
-		if(i == numPages()){
-    		HeapPage page = new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData());
-    		page.insertTuple(t);
-    		arrayList.add(page);
-    		writePage(page);
+	}
+
+	/**
+	 * Pick an empty slot of the page and lock it exclusively for tid,
+	 * preferring slots no other transaction holds a lock on: a slot emptied
+	 * by a running transaction stays locked until it ends, as its abort puts
+	 * the record back.
+	 *
+	 * @return the locked slot, or -1 if the page has no empty slot
+	 */
+	private int lockEmptySlot(TransactionId tid, HeapPage page) throws TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		int slot = -1;
+		for(int i = 0; i < page.getNumSlots(); i++){
+			if(!page.isSlotUsed(i)){
+				if(!pool.isLockedByOther(tid, new RecordId(page.getId(), i))){
+					slot = i;
+					break;
+				}
+				if(slot < 0){
+					slot = i;
+				}
+			}
 		}
-		return arrayList;
+		if(slot >= 0){
+			pool.lockTuple(tid, new RecordId(page.getId(), slot), Permissions.READ_WRITE);
+		}
+		return slot;
 	}
 
 	// see DbFile.java for javadocs
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
-			throws DbException, TransactionAbortedException {
+			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
 		// not necessary for lab1
     	BufferPool pool = Database.getBufferPool();
-    	HeapPage page = (HeapPage)pool.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-    	page.deleteTuple(t);
+    	PageId pid = t.getRecordId().getPageId();
+    	HeapPage page;
+    	while(true){
+    		// in STEAL mode the caller's exclusive lock on the record is
+    		// enough, as an abort undoes single records
+    		page = (HeapPage)(pool.isStealNoForce()
+    				? pool.getPageForRecords(tid, pid, Permissions.READ_WRITE)
+    				: pool.getPage(tid, pid, Permissions.READ_WRITE));
+    		// logged under the latch, before a write can pick it up; a page
+    		// evicted since getPage is got again
+    		pool.latchPage(pid);
+    		try {
+    			if(pool.isResident(page)){
+    				page.deleteTuple(t);
+    				pool.pageChanged(tid, page);
+    				break;
+    			}
+    		} finally {
+    			pool.unlatchPage(pid);
+    		}
+    	}
+    	freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
 		ArrayList<Page> arrayList = new ArrayList<Page>();
 		arrayList.add(page);
 		return arrayList;
@@ -157,32 +339,74 @@ public class HeapFile implements DbFile {
 	// see DbFile.java for javadocs
 	public DbFileIterator iterator(TransactionId tid) {
 		// some code goes here
-		return new HeapFileIterator(tid, this);
+		return new HeapFileIterator(tid, this, null);
+	}
+
+	/**
+	 * Returns an iterator over the tuples of this file that pass the
+	 * specified predicate. Tuples the predicate rejects are tested in place
+	 * on their pages, without being materialized.
+	 *
+	 * @see HeapPage#iterator(Predicate)
+	 */
+	public DbFileIterator iterator(TransactionId tid, Predicate p) {
+		return new HeapFileIterator(tid, this, p);
 	}
 
 	class HeapFileIterator extends AbstractDbFileIterator {
 
 		TransactionId tid = null;
 		HeapFile file = null;
+		Predicate pred = null;
 		Iterator<Tuple> it = null;
 		int cursor = 0;
+		BufferRing ring = null;
+		int prefetched = 0;
 
-		public HeapFileIterator(TransactionId tid, HeapFile file) {
+		public HeapFileIterator(TransactionId tid, HeapFile file, Predicate pred) {
 			this.tid = tid;
 			this.file = file;
+			this.pred = pred;
 		}
 
 		@Override
 		public void open() throws DbException, TransactionAbortedException {
 			// TODO Auto-generated method stub
+			// large files are scanned through a private ring of pages, and
+			// read-only transactions read mapped files straight from the
+			// mapping without caching
+			if (file.isMemoryMapped() && tid != null && tid.isReadOnly()) {
+				ring = new BufferRing(1, true);
+			} else {
+				ring = Database.getBufferPool().getScanRing(file.numPages());
+			}
 			HeapPageId pid = new HeapPageId(file.getId(), cursor);// starts with
 																	// zero
 			HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
-					pid, Permissions.READ_ONLY);
-			it = page.iterator();
+					pid, Permissions.READ_ONLY, ring);
+			it = page.iterator(pred);
+			prefetched = cursor;
+			readAhead();
 			//cursor = 0;
 		}
 
+		/**
+		 * Ask the BufferPool to read the pages following the cursor in the
+		 * background, keeping getPrefetchWindow() pages in flight.
+		 */
+		private void readAhead() {
+			if (file.isMemoryMapped()) {
+				// the OS reads ahead in the mapping
+				return;
+			}
+			BufferPool pool = Database.getBufferPool();
+			int last = Math.min(cursor + pool.getPrefetchWindow(), file.numPages() - 1);
+			while (prefetched < last) {
+				prefetched++;
+				pool.prefetch(new HeapPageId(file.getId(), prefetched));
+			}
+		}
+
 		@Override
 		public void rewind() throws DbException, TransactionAbortedException {
 			// TODO Auto-generated method stub
@@ -202,9 +426,10 @@ public class HeapFile implements DbFile {
 				if (cursor < (file.numPages() - 1)) {
 					HeapPageId pid = new HeapPageId(file.getId(), cursor + 1);
 					HeapPage page = (HeapPage) Database.getBufferPool()
-							.getPage(tid, pid, Permissions.READ_ONLY);
-					it = page.iterator();
+							.getPage(tid, pid, Permissions.READ_ONLY, ring);
+					it = page.iterator(pred);
 					cursor++;
+					readAhead();
 				} else {
 					return null;
 				}
@@ -216,6 +441,7 @@ public class HeapFile implements DbFile {
 			super.close();
 			it = null;
 			cursor = 0;
+			ring = null;
 		}
 		
 	}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -10,18 +11,26 @@ import java.io.*;
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    // tuples inserted since the page was read; the other used slots are
+    // decoded from data on demand
     final Tuple tuples[];
     final int numSlots;
+    // the page as it was read; never modified
+    final ByteBuffer data;
+    // offset of each field within a tuple slot
+    final int[] fieldOffsets;
 
-    byte[] oldData;
+    ByteBuffer oldData;
     private final Byte oldDataLock = new Byte((byte) 0);
 
-    private List<Tuple> validTuples = new ArrayList<Tuple>();
+    // slots changed since takeSlotChanges, with their contents before
+    private Map<Integer, byte[]> slotChanges = new HashMap<Integer, byte[]>();
+
     private TransactionId lastTId = null;
     /**
      * Create a HeapPage from a set of bytes of data read from disk. The format
@@ -37,35 +46,51 @@ public class HeapPage implements Page {
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are not decoded here. The page keeps data, which must not be
+     * modified afterwards, and decodes the fields of a tuple only when they
+     * are read.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the bytes of data between the position and the
+     * limit of a buffer, without copying them, e.g. from a view of a memory
+     * mapped file. The page and its tuples read the buffer for as long as
+     * they are used, so its contents must not change meanwhile.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(
-                new ByteArrayInputStream(data));
+        if (data.remaining() < BufferPool.getPageSize()) {
+            throw new IOException("short page " + id);
+        }
+        this.data = data.slice();
 
-        // allocate and read the header slots of this page
+        // read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        copyData(0, header, 0, header.length);
 
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++){
-                tuples[i] = readNextTuple(dis, i);
-            }             
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
         }
-        dis.close();
 
-        setBeforeImage();
+        tuples = new Tuple[numSlots];
+
+        // nothing has been modified yet, so the page data is its own before
+        // image
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
     }
 
     /**
@@ -101,7 +126,7 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
@@ -116,7 +141,7 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = ByteBuffer.wrap(getPageData());
         }
     }
 
@@ -130,38 +155,34 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in the page data of the specified slot
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId)
-            throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException(
-                            "error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Copy len bytes of the page data, starting at from, into out.
+     */
+    private void copyData(int from, byte[] out, int offset, int len) {
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + from, out, offset, len);
+        } else {
+            ByteBuffer view = data.duplicate();
+            view.position(from);
+            view.get(out, offset, len);
         }
+    }
 
+    /**
+     * @return the tuple in a used slot: the inserted tuple if there is one,
+     * otherwise a view that decodes the slot from the page data
+     */
+    private Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new SlotTuple(this, slotId);
+        }
         return t;
     }
 
@@ -178,66 +199,84 @@ public class HeapPage implements Page {
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        // empty slots and the padding stay zero
+        byte[] out = new byte[len];
 
         // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, out, 0, header.length);
 
         // create the tuples
         for (int i = 0; i < tuples.length; i++) {
+            if (isSlotUsed(i)) {
+                writeSlot(i, out, slotOffset(i));
+            }
+        }
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        return out;
+    }
 
-                }
-                continue;
-            }
+    /**
+     * Serialize the tuple in a used slot into out at the given offset.
+     */
+    private void writeSlot(int slotId, byte[] out, int offset) {
+        int tupleSize = td.getSize();
 
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
+        // slot unchanged since the page was read
+        if (tuples[slotId] == null) {
+            copyData(slotOffset(slotId), out, offset, tupleSize);
+            return;
+        }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        // inserted tuple
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = tuples[slotId].getField(j);
+            try {
+                f.serialize(dos);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+        System.arraycopy(baos.toByteArray(), 0, out, offset, Math.min(baos.size(), tupleSize));
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize()
-                - (header.length + td.getSize() * tuples.length); // - numSlots
-        // *
-        // td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public byte[] getSlotData(int slot) {
+        if (!isSlotUsed(slot)) {
+            return null;
         }
+        byte[] out = new byte[td.getSize()];
+        writeSlot(slot, out, 0);
+        return out;
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    public void setSlotData(int slot, byte[] slotData) {
+        if (slot < 0 || slot >= numSlots) {
+            throw new IllegalArgumentException("no slot " + slot + " on " + pid);
         }
+        if (slotData == null) {
+            markSlotUsed(slot, false);
+            tuples[slot] = null;
+            return;
+        }
+        if (slotData.length != td.getSize()) {
+            throw new IllegalArgumentException("slot data has " + slotData.length + " bytes, expected " + td.getSize());
+        }
+        tuples[slot] = new SlotTuple(this, slot, ByteBuffer.wrap(slotData.clone()), 0);
+        markSlotUsed(slot, true);
+    }
+
+    public Map<Integer, byte[]> takeSlotChanges() {
+        Map<Integer, byte[]> changes = slotChanges;
+        slotChanges = new HashMap<Integer, byte[]>();
+        return changes;
+    }
 
-        return baos.toByteArray();
+    // remember what a slot held before its first change
+    private void noteSlotChange(int slot) {
+        if (!slotChanges.containsKey(slot)) {
+            slotChanges.put(slot, getSlotData(slot));
+        }
     }
 
     /**
@@ -271,6 +310,7 @@ public class HeapPage implements Page {
     	if(!isSlotUsed(rid.getTupleNumber())){
     		throw new DbException("tuple slot is empty!");
     	}
+    	noteSlotChange(rid.getTupleNumber());
     	markSlotUsed(rid.getTupleNumber(), false);
     	tuples[rid.getTupleNumber()] = null;
     	//System.out.println("delete success:" + Thread.currentThread().getId() + ":" + ((IntField)t.getField(0)).getValue());
@@ -287,23 +327,35 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        for (int i = 0; i < tuples.length; i++){
+            if(!isSlotUsed(i)){
+            	insertTuple(t, i);
+            	return;
+            }
+        }
+        throw new DbException("page is full!");
+    }
+
+    /**
+     * Adds the specified tuple to the page in the specified slot, which a
+     * caller locking single records has locked.
+     *
+     * @param t The tuple to add.
+     * @param slot The slot to put it in.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
     	TupleDesc tDesc = t.getTupleDesc();
     	if(!tDesc.equals(td)){
     		throw new DbException("tupledesc is mismatch!");
     	}
-    	if(getNumEmptySlots() == 0){
-    		throw new DbException("page is full!");
+    	if(slot < 0 || slot >= tuples.length || isSlotUsed(slot)){
+    		throw new DbException("tuple slot is not empty!");
     	}
-        for (int i = 0; i < tuples.length; i++){
-            if(tuples[i] == null){
-            	tuples[i] = t;
-            	RecordId rid = new RecordId(pid, i);
-            	t.setRecordId(rid);
-            	markSlotUsed(i, true);
-            	break;
-            }
-        }
-        //System.out.println("insert success:" + Thread.currentThread().getId() + ":" + ((IntField)t.getField(0)).getValue());
+    	noteSlotChange(slot);
+    	tuples[slot] = t;
+    	t.setRecordId(new RecordId(pid, slot));
+    	markSlotUsed(slot, true);
     }
 
     /**
@@ -333,6 +385,13 @@ public class HeapPage implements Page {
     	return lastTId;
     }
 
+    /**
+     * Returns the number of slots on this page.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -354,18 +413,10 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         // some code goes here
         //return false;
-        if (i < 0) {
+        if (i < 0 || i >= numSlots) {
             return false;
         }
-
-        String bits = byteToBit(header[i / 8]);
-
-        int label = i % 8;
-        if (bits.charAt(7 - label) == '1') {
-            return true;
-
-        }
-        return false;
+        return ((header[i / 8] >> (i % 8)) & 1) == 1;
     }
 
     /**
@@ -374,63 +425,168 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-    	char[] bits = byteToBit(header[i / 8]).toCharArray();
-    	int label = i % 8;
     	if(value){
-    		bits[7 - label] = '1';
+    		header[i / 8] |= (byte) (1 << (i % 8));
     	}else{
-    		bits[7 - label] = '0';
+    		header[i / 8] &= (byte) ~(1 << (i % 8));
     	}
-    	String result = new String(bits);
-    	header[i / 8] = decodeBinaryString(result);
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this
      * iterator throws an UnsupportedOperationException) (note that this
      * iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * Tuples that were read from disk are returned as views over the page
+     * data, created as the iterator reaches them, that decode each field the
+     * first time it is asked for. A view is a copy: setting one of its fields
+     * does not change the page.
      */
     public Iterator<Tuple> iterator() {
-        // some code goes here
-        //return null;
-        validTuples.clear();
-        int index = 0;
-        for (int i = 0; i < tuples.length; ++i) {
-            if (tuples[i] != null) {
-                validTuples.add(index, tuples[i]);
-                index++;
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that pass the
+     * specified predicate, or over all of them if it is null
+     * <p>
+     * The predicate is applied to the slots read from disk through a single
+     * view that the iterator moves from slot to slot, so a tuple the
+     * predicate rejects costs no allocation; only the tuples that pass get a
+     * view of their own.
+     */
+    public Iterator<Tuple> iterator(final Predicate p) {
+        return new Iterator<Tuple>() {
+            // the view the predicate is applied through
+            private SlotTuple probe = null;
+            private int next = nextPassingSlot(0);
+
+            private int nextPassingSlot(int from) {
+                int i = nextUsedSlot(from);
+                while (p != null && i < numSlots && !passes(i)) {
+                    i = nextUsedSlot(i + 1);
+                }
+                return i;
+            }
+
+            private boolean passes(int slotId) {
+                Tuple t = tuples[slotId];
+                if (t == null) {
+                    if (probe == null) {
+                        probe = new SlotTuple(HeapPage.this, slotId);
+                    } else {
+                        probe.moveTo(slotOffset(slotId));
+                    }
+                    t = probe;
+                }
+                return p.filter(t);
+            }
+
+            public boolean hasNext() {
+                return next < numSlots;
             }
-        }
-        return validTuples.iterator();
 
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = getTuple(next);
+                next = nextPassingSlot(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
-    private String byteToBit(byte b) {
-        return ""
-                + (byte) ((b >> 7) & 0x1) + (byte) ((b >> 6) & 0x1)
-                + (byte) ((b >> 5) & 0x1) + (byte) ((b >> 4) & 0x1)
-                + (byte) ((b >> 3) & 0x1) + (byte) ((b >> 2) & 0x1)
-                + (byte) ((b >> 1) & 0x1) + (byte) ((b >> 0) & 0x1);
+    private int nextUsedSlot(int from) {
+        int i = from;
+        while (i < numSlots && !isSlotUsed(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * A tuple that lives in a slot of the page data. Fields are decoded from
+     * the page bytes when they are first read and cached; nothing is copied
+     * for fields that are never read. The page data is never modified, so a
+     * view stays valid after its slot is deleted or the page is changed.
+     * Setting a field only changes the view, never the page.
+     */
+    private static class SlotTuple extends Tuple {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer data;
+        private final int[] fieldOffsets;
+        private int offset;
+        private final Field[] fields;
+
+        SlotTuple(HeapPage page, int slotId) {
+            this(page, slotId, page.data, page.slotOffset(slotId));
+        }
+
+        SlotTuple(HeapPage page, int slotId, ByteBuffer data, int offset) {
+            super(page.td);
+            this.data = data;
+            this.fieldOffsets = page.fieldOffsets;
+            this.offset = offset;
+            this.fields = new Field[fieldOffsets.length];
+            setRecordId(new RecordId(page.pid, slotId));
+        }
+
+        /**
+         * Point the view at the slot at another offset of the same data,
+         * dropping the decoded fields. Only for a view that has not been
+         * handed out; its RecordId is left as it was.
+         */
+        void moveTo(int offset) {
+            this.offset = offset;
+            Arrays.fill(fields, null);
+        }
+
+        @Override
+        public Field getField(int i) {
+            Field f = fields[i];
+            if (f == null) {
+                try {
+                    f = getTupleDesc().getFieldType(i).parse(data, offset + fieldOffsets[i]);
+                } catch (java.text.ParseException e) {
+                    throw new NoSuchElementException("parsing error!");
+                }
+                fields[i] = f;
+            }
+            return f;
+        }
+
+        @Override
+        public void setField(int i, Field f) {
+            fields[i] = f;
+        }
+
+        @Override
+        public Iterator<Field> fields() {
+            return new Iterator<Field>() {
+                private int next = 0;
+
+                public boolean hasNext() {
+                    return next < fields.length;
+                }
+
+                public Field next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return getField(next++);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
     }
-    
-    private byte decodeBinaryString(String byteStr) {  
-        int re, len;  
-        if (null == byteStr) {  
-            return 0;  
-        }  
-        len = byteStr.length();  
-        if (len != 4 && len != 8) {  
-            return 0;  
-        }  
-        if (len == 8) {
-            if (byteStr.charAt(0) == '0') {
-                re = Integer.parseInt(byteStr, 2);  
-            } else {
-                re = Integer.parseInt(byteStr, 2) - 256;  
-            }  
-        } else {
-            re = Integer.parseInt(byteStr, 2);  
-        }  
-        return (byte) re;  
-    }  
 }
@@ -0,0 +1,139 @@
+package simpledb;
+
+/**
+ * The IndexNestedLoopJoin operator implements the relational join operation
+ * when the inner (right) child is a scan of a B+ tree indexed on the join
+ * field. For every outer (left) tuple, it looks up the matching inner tuples
+ * in the index instead of reading the inner table; the inner scan itself is
+ * never opened.
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1;
+    private SeqScan child2;
+
+    transient private Tuple t1 = null;
+    transient private DbFileIterator matches = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation to join, which must be
+     *            indexed on the join field
+     * @throws IllegalArgumentException
+     *             if the index cannot be used to join the children
+     * @see #canProbe
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, SeqScan child2) {
+        super(p, child1, child2);
+        if (!canProbe(p, child2)) {
+            throw new IllegalArgumentException("inner child is not indexed on the join field");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if the inner child is a scan of a B+ tree on the join
+     *         field without a predicate of its own, which probing the index
+     *         would drop, and the join predicate can be looked up in it
+     */
+    public static boolean canProbe(JoinPredicate p, OpIterator child2) {
+        if (!(child2 instanceof SeqScan) || ((SeqScan) child2).getPredicate() != null
+                || indexOp(p.getOperator()) == null) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) child2).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2();
+    }
+
+    /**
+     * @return the operator that, applied to an inner key and an outer field,
+     *         holds when op holds for the outer field and the inner key, or
+     *         null if the index cannot look up op
+     */
+    private static Predicate.Op indexOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    protected boolean readsInner() {
+        return false;
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        closeMatches();
+        t1 = null;
+    }
+
+    private void closeMatches() {
+        if (matches != null) {
+            matches.close();
+            matches = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The results are returned in the order of the outer tuples,
+     * and for each outer tuple in the order of the index.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext()) {
+                Tuple t2 = matches.next();
+                if (pred.filter(t1, t2)) {
+                    return joinTuple(t1, t2);
+                }
+                continue;
+            }
+            closeMatches();
+            if (!child1.hasNext()) {
+                return null;
+            }
+            t1 = child1.next();
+            BTreeFile index = (BTreeFile) Database.getCatalog().getDatabaseFile(child2.getTableId());
+            matches = index.indexIterator(child2.getTransactionId(),
+                    new IndexPredicate(indexOp(pred.getOperator()), t1.getField(pred.getField1())));
+            matches.open();
+        }
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        super.setChildren(children);
+        child1 = children[0];
+        child2 = (SeqScan) children[1];
+    }
+}
@@ -2,7 +2,6 @@ package simpledb;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
@@ -14,9 +13,7 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private Map<Field, List<Integer>> groups;
-    private Map<Field, Tuple> results;
-    private TupleDesc td;
+    private GroupTable groups;
     /**
      * Aggregate constructor
      * 
@@ -38,15 +35,7 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        groups = new HashMap<Field, List<Integer>>();
-        results = new HashMap<Field, Tuple>();
-        Type[] types;
-        if(gbfield == Aggregator.NO_GROUPING){
-            types = new Type[]{Type.INT_TYPE};
-        }else{
-            types = new Type[]{gbfieldtype, Type.INT_TYPE};
-        }
-        td = new TupleDesc(types);
+        groups = new GroupTable(gbfield == Aggregator.NO_GROUPING ? null : gbfieldtype, what);
     }
 
     /**
@@ -61,27 +50,16 @@ public class IntegerAggregator implements Aggregator {
         Field key = null;
         if(gbfield != Aggregator.NO_GROUPING){
             key = tup.getField(gbfield);
-        }else{
-            key = new IntField(-1);
-        }
-        Integer val = tup.getField(afield).hashCode();
-        if(groups.get(key) == null){
-            groups.put(key, new LinkedList<Integer>());
         }
-        groups.get(key).add(val);
-        Iterator<Integer> iter = groups.get(key).iterator();
-        Integer aggregateVal = doAggregate(what.toString(), iter);
-        Tuple t = new Tuple(td);
-        if(gbfield == Aggregator.NO_GROUPING){
-            Field f1 = new IntField(aggregateVal);
-            t.setField(0, f1);
-        }else{
-            Field f1 = tup.getField(gbfield);
-            Field f2 = new IntField(aggregateVal);
-            t.setField(0, f1);
-            t.setField(1, f2);
-        }
-        results.put(key, t);
+        groups.add(key, ((IntField) tup.getField(afield)).getValue());
+    }
+
+    /**
+     * Set the number of bytes of groups kept in memory before they are
+     * spilled to disk; the default is the size of the BufferPool.
+     */
+    public void setMemoryBudget(long bytes) {
+        groups.setMemoryBudget(bytes);
     }
 
     /**
@@ -96,65 +74,11 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
         //throw new
         //UnsupportedOperationException("please implement me for lab2");
-        return new TupleIterator(td, results.values());
+        return groups.iterator();
     }
 
-    private Integer doAggregate(String type, Iterator<Integer> it){
-        if(type.equals("min")){
-            Integer min = null;
-            while (it.hasNext()){
-                Integer next = it.next();
-                if(min == null){
-                    min = next;
-                    continue;
-                }
-                int a = min.intValue();
-                int b = next.intValue();
-                if(a > b){
-                    min = next;
-                }
-            }
-            return min;
-        }else if(type.equals("max")){
-            Integer max = null;
-            while (it.hasNext()){
-                Integer next = it.next();
-                if(max == null){
-                    max = next;
-                    continue;
-                }
-                int a = max.intValue();
-                int b = next.intValue();
-                if(a < b){
-                    max = next;
-                }
-            }
-            return max;
-        }else if(type.equals("sum")){
-            Integer sum = 0;
-            while (it.hasNext()){
-                Integer next = it.next();
-                sum += next;
-            }
-            return sum;
-        }else if(type.equals("count")){
-            Integer cnt = 0;
-            while (it.hasNext()){
-                Integer next = it.next();
-                cnt += 1;
-            }
-            return cnt;
-        }else if(type.equals("avg")){
-            Integer sum = 0;
-            Integer cnt = 0;
-            while (it.hasNext()){
-                Integer next = it.next();
-                sum += next;
-                cnt += 1;
-            }
-            Integer avg = sum / cnt;
-            return avg;
-        }
-        throw new UnsupportedOperationException("operator illegal!");
+    // see Aggregator.java for javadocs
+    public void close() {
+        groups.close();
     }
 }
@@ -71,12 +71,23 @@ public class Join extends Operator {
     	return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * @return true if the join reads the inner (right) child, so that open(),
+     *         rewind() and close() pass on to it; joins that look the inner
+     *         tuples up some other way return false
+     */
+    protected boolean readsInner() {
+        return true;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
     	super.open();
     	child1.open();
-    	child2.open();
+    	if (readsInner()) {
+    		child2.open();
+    	}
     }
 
     public void close() {
@@ -84,14 +95,18 @@ public class Join extends Operator {
     	super.close();
     	child1.close();
     	cursor1 = null;
-    	child2.close();
+    	if (readsInner()) {
+    		child2.close();
+    	}
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
     	child1.rewind();
     	cursor1 = null;
-    	child2.rewind();
+    	if (readsInner()) {
+    		child2.rewind();
+    	}
     }
 
     /**
@@ -145,7 +160,7 @@ public class Join extends Operator {
     	child2 = children[1];
     }
     
-    private Tuple joinTuple(Tuple t1, Tuple t2){
+    protected Tuple joinTuple(Tuple t1, Tuple t2){
     	if((t1 == null) || (t2 == null)){
     		return null;
     	}
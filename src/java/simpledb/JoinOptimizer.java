@@ -68,7 +68,21 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // merge children sorted on the join fields (range joins only if the
+        // inner child fits in memory), look the inner tuples up in an index
+        // on the join field if there is one, hash equi-joins, and read the
+        // inner child once per block of outer tuples otherwise
+        if (SortMergeJoin.supports(lj.p) && SortMergeJoin.isSorted(plan1, t1id)
+                && SortMergeJoin.isSorted(plan2, t2id)
+                && SortMergeJoin.fitsInMemory(lj.p, plan2)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (IndexNestedLoopJoin.canProbe(p, plan2)) {
+            j = new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            j = new BlockNestedLoopJoin(p, plan1, plan2);
+        }
 
         return j;
 
@@ -102,6 +116,24 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true, true);
+    }
+
+    /**
+     * Estimate the cost of a join like
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)},
+     * where either side may be the result of earlier joins instead of a
+     * scan of its table. Such a side is not taken to be sorted on the join
+     * field, as instantiateJoin only merge joins the output of the scans of
+     * B+ trees keyed on it.
+     *
+     * @param scan1
+     *            true if the left-hand side scans the table j.t1Alias
+     * @param scan2
+     *            true if the right-hand side scans the table j.t2Alias
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean scan1, boolean scan2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -112,6 +144,18 @@ public class JoinOptimizer {
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
             //return -1.0;
+        	if (SortMergeJoin.supports(j.p)
+        			&& scan1 && isSortedScan(j.t1Alias, j.f1PureName)
+        			&& scan2 && isSortedScan(j.t2Alias, j.f2PureName)
+        			&& SortMergeJoin.fitsInMemory(j.p, Database.getCatalog()
+        					.getDatabaseFile(p.getTableId(j.t2Alias)))) {
+        		// a merge join reads both sides once, and compares the
+        		// outer tuples with their matches only (estimated as in
+        		// estimateTableJoinCardinality)
+        		double matches = j.p == Predicate.Op.EQUALS ? Math.max(card1, card2)
+        				: card1 * (double) card2 * 3 / 10;
+        		return cost1 + cost2 + card1 + card2 + matches;
+        	}
         	return cost1 + card1 * cost2 + card1 * card2; 
         }
     }
@@ -327,6 +371,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a scan of its table, not earlier joins
+        boolean t1scan = true, t2scan = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -362,6 +408,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1scan = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -378,6 +425,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2scan = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -391,10 +439,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t1scan, t2scan);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                t2scan, t1scan);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -445,6 +495,26 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
+    /**
+     * Return true if the table is a B+ tree keyed on the field, so that a scan
+     * of it is sorted on the field
+     */
+    private boolean isSortedScan(String tableAlias, String field) {
+        Integer tableId = p == null || tableAlias == null ? null : p.getTableId(tableAlias);
+        if (tableId == null) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile)) {
+            return false;
+        }
+        try {
+            return ((BTreeFile) f).keyField() == f.getTupleDesc().fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
     /**
      * Return true if a primary key field is joined by one of the joins in
      * joinlist
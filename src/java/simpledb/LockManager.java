@@ -1,158 +1,725 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * LockManager keeps the locks of all transactions on a hierarchy of
+ * resources: tables, the pages of a table, and the records on a page.
+ * <p>
+ * Locks follow the multiple granularity protocol. Before a page is locked
+ * shared (S) or exclusive (X), its table is locked intention shared (IS) or
+ * intention exclusive (IX), and before a record is locked, both its table and
+ * its page are. A lock on a table or page in S or X mode covers everything
+ * below it. A transaction that accumulates too many record locks on one page
+ * has them escalated to a page lock, and one that accumulates too many page
+ * and record locks in one table has them escalated to a table lock.
+ * <p>
+ * The lock table is split into stripes, each guarded by its own latch, so
+ * transactions locking unrelated resources do not contend. Every locked
+ * resource has a queue: the transactions that hold the lock and, behind
+ * them, the requests waiting for it in FIFO order. A new request is only
+ * granted ahead of waiting ones when it upgrades a lock the transaction
+ * already holds, which goes to the front of the queue. A waiting thread parks
+ * until it is granted the lock.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: every waiting request
+ * records the transactions it waits for, the conflicting holders and the
+ * conflicting requests queued ahead of it. When a request has to wait, the
+ * graph is searched for a cycle through its transaction, and if there is one
+ * a victim on the cycle is chosen: the transaction holding the fewest locks,
+ * the youngest one among those. The victim's waiting requests are withdrawn
+ * and its acquireLock calls throw TransactionAbortedException. An optional
+ * timeout additionally aborts requests that wait too long.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-	private final int MIN_TIME = 100, MAX_TIME = 1000;
-	private final ConcurrentHashMap<PageId, Object> locks;
-	private final Map<PageId, Set<TransactionId>> readLockHolders;
-	private final Map<PageId, TransactionId> writeLockHolders;
-	private final Map<TransactionId, List<PageId>> dirtyPages; 
-	
-	public LockManager(){
-		locks = new ConcurrentHashMap<PageId, Object>();
-		readLockHolders = new ConcurrentHashMap<PageId, Set<TransactionId>>();
-		writeLockHolders = new ConcurrentHashMap<PageId, TransactionId>();
-		dirtyPages = new ConcurrentHashMap<TransactionId, List<PageId>>();
-	}
-
-	public void acquireLock(TransactionId tid,Permissions perm, PageId pid) throws InterruptedException {
-		if(dirtyPages.get(tid) == null){
-			dirtyPages.put(tid, new ArrayList<PageId>());
-		}
-		if(readLockHolders.get(pid) == null){
-			readLockHolders.put(pid, new HashSet<TransactionId>());
-		}
-		if(perm.permLevel == 0 && holdReadLock(tid, pid)){
+
+	/**
+	 * Default time a request waits for a lock before it gives up; 0 means
+	 * wait until granted or chosen as a deadlock victim.
+	 */
+	public static final long DEFAULT_TIMEOUT_MS = 0;
+
+	/** Default number of record locks on a page that triggers escalation. */
+	public static final int DEFAULT_PAGE_ESCALATION = 32;
+
+	/**
+	 * Default number of page and record locks in a table that triggers
+	 * escalation.
+	 */
+	public static final int DEFAULT_TABLE_ESCALATION = 1024;
+
+	private static final int STRIPES = 64;
+
+	/** Lock modes, ordered from weakest to strongest. */
+	public enum LockMode {
+		IS, IX, S, SIX, X;
+
+		// COMPATIBLE[a][b]: a lock in mode a can be held alongside one in b
+		private static final boolean[][] COMPATIBLE = {
+				/*         IS     IX     S      SIX    X */
+				/* IS  */ { true, true, true, true, false },
+				/* IX  */ { true, true, false, false, false },
+				/* S   */ { true, false, true, false, false },
+				/* SIX */ { true, false, false, false, false },
+				/* X   */ { false, false, false, false, false } };
+
+		public boolean compatibleWith(LockMode other) {
+			return COMPATIBLE[ordinal()][other.ordinal()];
+		}
+
+		/** @return true if holding this mode implies holding other */
+		public boolean covers(LockMode other) {
+			switch (this) {
+			case X:
+				return true;
+			case SIX:
+				return other != X;
+			case S:
+				return other == IS || other == S;
+			case IX:
+				return other == IS || other == IX;
+			default:
+				return other == IS;
+			}
+		}
+
+		/** @return the weakest mode that covers both this and other */
+		public LockMode combine(LockMode other) {
+			if (covers(other)) {
+				return this;
+			}
+			if (other.covers(this)) {
+				return other;
+			}
+			// S and IX, or either with SIX
+			return SIX;
+		}
+	}
+
+	/** The lock resource standing for a whole table. */
+	private static final class TableLock {
+		final int tableId;
+
+		TableLock(int tableId) {
+			this.tableId = tableId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof TableLock && ((TableLock) o).tableId == tableId;
+		}
+
+		@Override
+		public int hashCode() {
+			return tableId;
+		}
+	}
+
+	/** The locks one transaction holds. */
+	private static class HeldLocks {
+		final ConcurrentHashMap<Object, LockMode> modes = new ConcurrentHashMap<Object, LockMode>();
+		// number of record locks per page and of page and record locks per
+		// table, for escalation
+		final ConcurrentHashMap<Object, AtomicInteger> fineLocks = new ConcurrentHashMap<Object, AtomicInteger>();
+
+		int count(Object parent, int delta) {
+			AtomicInteger n = fineLocks.get(parent);
+			if (n == null) {
+				AtomicInteger created = new AtomicInteger();
+				n = fineLocks.putIfAbsent(parent, created);
+				if (n == null) {
+					n = created;
+				}
+			}
+			return n.addAndGet(delta);
+		}
+	}
+
+	private final Object[] latches;
+	private final List<Map<Object, LockQueue>> tables;
+	private final ConcurrentHashMap<TransactionId, HeldLocks> held;
+	private final long timeoutNanos;
+	private volatile int pageEscalation = DEFAULT_PAGE_ESCALATION;
+	private volatile int tableEscalation = DEFAULT_TABLE_ESCALATION;
+
+	// the waits-for graph: waiting requests of each transaction, whose
+	// blockers are the outgoing edges. Guarded by itself and always locked
+	// after a stripe latch, never before.
+	private final Map<TransactionId, Set<LockRequest>> waiting;
+	private final AtomicLong deadlocks = new AtomicLong(0);
+
+	/** The holders and waiting requests of one resource's lock. */
+	private static class LockQueue {
+		final Map<TransactionId, LockMode> holders = new HashMap<TransactionId, LockMode>();
+		final LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+	}
+
+	private static class LockRequest {
+		final TransactionId tid;
+		final Object resource;
+		// the mode the transaction will hold once granted
+		final LockMode mode;
+		final boolean upgrade;
+		final Thread thread;
+		volatile boolean granted = false;
+		volatile boolean aborted = false;
+		// transactions this request waits for, guarded by waiting
+		Set<TransactionId> blockers = new HashSet<TransactionId>();
+
+		LockRequest(TransactionId tid, Object resource, LockMode mode, boolean upgrade) {
+			this.tid = tid;
+			this.resource = resource;
+			this.mode = mode;
+			this.upgrade = upgrade;
+			this.thread = Thread.currentThread();
+		}
+	}
+
+	public LockManager() {
+		this(DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param timeoutMs
+	 *            how long a request waits for a lock before the transaction
+	 *            is aborted, or 0 to only abort deadlock victims
+	 */
+	public LockManager(long timeoutMs) {
+		latches = new Object[STRIPES];
+		tables = new ArrayList<Map<Object, LockQueue>>(STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			latches[i] = new Object();
+			tables.add(new HashMap<Object, LockQueue>());
+		}
+		held = new ConcurrentHashMap<TransactionId, HeldLocks>();
+		timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		waiting = new HashMap<TransactionId, Set<LockRequest>>();
+	}
+
+	/**
+	 * @return the number of deadlocks detected so far
+	 */
+	public long getDeadlockCount() {
+		return deadlocks.get();
+	}
+
+	/**
+	 * Set when fine grained locks are escalated.
+	 *
+	 * @param recordsPerPage
+	 *            number of record locks a transaction may hold on one page
+	 *            before it locks the whole page instead
+	 * @param locksPerTable
+	 *            number of page and record locks a transaction may hold in
+	 *            one table before it locks the whole table instead
+	 */
+	public void setEscalationThresholds(int recordsPerPage, int locksPerTable) {
+		this.pageEscalation = recordsPerPage;
+		this.tableEscalation = locksPerTable;
+	}
+
+	private static int stripe(Object resource) {
+		int h = resource.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % STRIPES;
+	}
+
+	private static LockMode mode(Permissions perm) {
+		return perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S;
+	}
+
+	private static LockMode intention(Permissions perm) {
+		return perm == Permissions.READ_WRITE ? LockMode.IX : LockMode.IS;
+	}
+
+	private HeldLocks heldLocks(TransactionId tid) {
+		HeldLocks h = held.get(tid);
+		if (h == null) {
+			HeldLocks created = new HeldLocks();
+			h = held.putIfAbsent(tid, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		return h;
+	}
+
+	/** @return true if tid holds resource in a mode that covers mode */
+	private boolean holds(TransactionId tid, Object resource, LockMode mode) {
+		HeldLocks h = held.get(tid);
+		if (h == null) {
+			return false;
+		}
+		LockMode m = h.modes.get(resource);
+		return m != null && m.covers(mode);
+	}
+
+	/**
+	 * Acquire a lock on the specified page, and the intention lock on its
+	 * table, waiting behind earlier requests if they are not available.
+	 *
+	 * @throws TransactionAbortedException
+	 *             if the transaction was chosen as a deadlock victim, the
+	 *             lock could not be granted in time, or the thread was
+	 *             interrupted while waiting
+	 */
+	public void acquireLock(TransactionId tid, Permissions perm, PageId pid)
+			throws TransactionAbortedException {
+		LockMode mode = mode(perm);
+		TableLock table = new TableLock(pid.getTableId());
+		if (holds(tid, table, mode) || holds(tid, pid, mode)) {
+			return;
+		}
+		lockIntention(tid, table, perm);
+		if (lock(tid, pid, mode)) {
+			escalate(tid, table, perm);
+		}
+	}
+
+	/**
+	 * Acquire a lock on the specified record, and the intention locks on its
+	 * page and table, waiting behind earlier requests if they are not
+	 * available. The lock may be escalated to its page or table.
+	 *
+	 * @throws TransactionAbortedException
+	 *             if the transaction was chosen as a deadlock victim, the
+	 *             lock could not be granted in time, or the thread was
+	 *             interrupted while waiting
+	 */
+	public void acquireLock(TransactionId tid, Permissions perm, RecordId rid)
+			throws TransactionAbortedException {
+		LockMode mode = mode(perm);
+		PageId pid = rid.getPageId();
+		TableLock table = new TableLock(pid.getTableId());
+		if (holds(tid, table, mode) || holds(tid, pid, mode)) {
 			return;
 		}
-		if(perm.permLevel == 1 && holdWriteLock(tid, pid)){
+		lockIntention(tid, table, perm);
+		lockIntention(tid, pid, perm);
+		if (lock(tid, rid, mode)) {
+			if (heldLocks(tid).count(pid, 1) >= pageEscalation) {
+				lock(tid, pid, mode);
+			}
+			escalate(tid, table, perm);
+		}
+	}
+
+	/**
+	 * Acquire the intention locks on the specified page and its table, for
+	 * a transaction that is going to lock single records on the page.
+	 *
+	 * @throws TransactionAbortedException
+	 *             if the transaction was chosen as a deadlock victim, the
+	 *             lock could not be granted in time, or the thread was
+	 *             interrupted while waiting
+	 */
+	public void acquireIntentionLock(TransactionId tid, Permissions perm, PageId pid)
+			throws TransactionAbortedException {
+		TableLock table = new TableLock(pid.getTableId());
+		if (holds(tid, table, mode(perm)) || holds(tid, pid, intention(perm))) {
 			return;
 		}
-		if(perm.permLevel == 0){
-			acquireReadLock(tid, pid);
-		}else{
-			acquireWriteLock(tid, pid);
+		lockIntention(tid, table, perm);
+		// counted like a page lock, as releaseLock() may drop it as one
+		if (lock(tid, pid, intention(perm))) {
+			escalate(tid, table, perm);
 		}
-		dirtyPages.get(tid).add(pid);
 	}
 
-	
-	public void releaseLock(TransactionId tid, PageId pid) throws InterruptedException{
-		if(holdReadLock(tid, pid)){
-			releaseReadLock(tid, pid);
+	private void lockIntention(TransactionId tid, Object resource, Permissions perm)
+			throws TransactionAbortedException {
+		if (!holds(tid, resource, intention(perm))) {
+			lock(tid, resource, intention(perm));
 		}
-		if(holdWriteLock(tid, pid)){
-			releaseWriteLock(tid, pid);
+	}
+
+	/**
+	 * Count a new page or record lock in a table and lock the whole table
+	 * once there are too many.
+	 */
+	private void escalate(TransactionId tid, TableLock table, Permissions perm)
+			throws TransactionAbortedException {
+		if (heldLocks(tid).count(table, 1) >= tableEscalation) {
+			lock(tid, table, mode(perm));
 		}
-		dirtyPages.get(tid).remove(pid);
 	}
-	
-	private void acquireReadLock(TransactionId tid, PageId pid) throws InterruptedException {
-		locks.putIfAbsent(pid, tid);
-		synchronized (locks.get(pid)) {
-			final Thread thread = Thread.currentThread();
-			final Timer timer = new Timer(true);
-			
-			timer.schedule(new TimerTask() {
-				@Override public void run() {
-					thread.interrupt();
+
+	/**
+	 * Lock a resource in the specified mode, or in the mode combining it with
+	 * the one already held.
+	 *
+	 * @return true if the transaction did not hold any lock on the resource
+	 *         before
+	 */
+	private boolean lock(TransactionId tid, Object resource, LockMode mode)
+			throws TransactionAbortedException {
+		int s = stripe(resource);
+		Object latch = latches[s];
+		Map<Object, LockQueue> table = tables.get(s);
+		LockRequest req;
+		LockQueue queue;
+		synchronized (latch) {
+			queue = table.get(resource);
+			if (queue == null) {
+				queue = new LockQueue();
+				table.put(resource, queue);
+			}
+			LockMode current = queue.holders.get(tid);
+			if (current != null && current.covers(mode)) {
+				return false;
+			}
+			req = new LockRequest(tid, resource, current == null ? mode : current.combine(mode),
+					current != null);
+			if ((req.upgrade || queue.waiters.isEmpty()) && compatible(queue, req)) {
+				grant(queue, req);
+				return !req.upgrade;
+			}
+			if (req.upgrade) {
+				// upgrades wait ahead of every new request
+				ListIterator<LockRequest> it = queue.waiters.listIterator();
+				while (it.hasNext()) {
+					if (!it.next().upgrade) {
+						it.previous();
+						break;
+					}
 				}
-			}, MIN_TIME);
-			while(writeLockHolders.get(pid) != null){
-				if(tid.equals(writeLockHolders.get(pid))){
+				it.add(req);
+			} else {
+				queue.waiters.addLast(req);
+			}
+			synchronized (waiting) {
+				Set<LockRequest> reqs = waiting.get(tid);
+				if (reqs == null) {
+					reqs = new HashSet<LockRequest>();
+					waiting.put(tid, reqs);
+				}
+				reqs.add(req);
+				updateBlockers(queue);
+				detectDeadlock(tid);
+			}
+		}
+
+		long deadline = System.nanoTime() + timeoutNanos;
+		boolean interrupted = false;
+		while (!req.granted && !req.aborted) {
+			if (timeoutNanos > 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
 					break;
 				}
-				locks.get(pid).wait();
+				LockSupport.parkNanos(this, remaining);
+			} else {
+				LockSupport.park(this);
+			}
+			if (Thread.interrupted()) {
+				interrupted = true;
+				break;
 			}
-			readLockHolders.get(pid).add(tid);
-			//System.out.println("read:pid :" + pid.toString() + "tid:" + tid.toString());
-			timer.cancel();
 		}
+
+		synchronized (latch) {
+			if (!req.granted) {
+				queue.waiters.remove(req);
+				synchronized (waiting) {
+					stopWaiting(req);
+				}
+				// the withdrawn request may have been holding up later ones
+				grantWaiters(queue);
+				if (queue.holders.isEmpty() && queue.waiters.isEmpty()) {
+					table.remove(resource);
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (!req.granted) {
+			throw new TransactionAbortedException();
+		}
+		return !req.upgrade;
 	}
-	
-	private void releaseReadLock(TransactionId tid, PageId pid) throws InterruptedException{
-		synchronized (locks.get(pid)) {
-			readLockHolders.get(pid).remove(tid);
-			if(readLockHolders.get(pid).size() == 0){
-				locks.get(pid).notifyAll();
+
+	/** @return true if req can be granted with the current holders */
+	private static boolean compatible(LockQueue queue, LockRequest req) {
+		for (Map.Entry<TransactionId, LockMode> h : queue.holders.entrySet()) {
+			if (!h.getKey().equals(req.tid) && !req.mode.compatibleWith(h.getValue())) {
+				return false;
 			}
 		}
+		return true;
 	}
-	
-	private void acquireWriteLock(TransactionId tid, PageId pid) throws InterruptedException{
-		locks.putIfAbsent(pid, tid);
-		synchronized (locks.get(pid)) {
-			final Thread thread = Thread.currentThread();
-			final Timer timer = new Timer(true);
-			
-			timer.schedule(new TimerTask() {
-				@Override public void run() {
-					thread.interrupt();
-				}
-			}, MIN_TIME);
-			while(readLockHolders.get(pid).size() != 0 || writeLockHolders.get(pid) != null){
-				if(readLockHolders.get(pid).size() == 1 && readLockHolders.get(pid).contains(tid)){
+
+	private void grant(LockQueue queue, LockRequest req) {
+		queue.holders.put(req.tid, req.mode);
+		heldLocks(req.tid).modes.put(req.resource, req.mode);
+		req.granted = true;
+	}
+
+	/** Grant waiting requests from the head of the queue while possible. */
+	private void grantWaiters(LockQueue queue) {
+		Iterator<LockRequest> it = queue.waiters.iterator();
+		synchronized (waiting) {
+			while (it.hasNext()) {
+				LockRequest req = it.next();
+				if (!compatible(queue, req)) {
 					break;
 				}
-				locks.get(pid).wait();
+				it.remove();
+				stopWaiting(req);
+				grant(queue, req);
+				LockSupport.unpark(req.thread);
 			}
-			writeLockHolders.put(pid, tid);
-			//System.out.println("write:pid :" + pid.toString() + "tid:" + tid.toString());
-			timer.cancel();
+			updateBlockers(queue);
 		}
 	}
-	
-	private void releaseWriteLock(TransactionId tid, PageId pid){
-		synchronized (locks.get(pid)) {
-			writeLockHolders.remove(pid, tid);
-			locks.get(pid).notifyAll();
+
+	/** Remove a request from the waits-for graph. */
+	private void stopWaiting(LockRequest req) {
+		Set<LockRequest> reqs = waiting.get(req.tid);
+		if (reqs != null) {
+			reqs.remove(req);
+			if (reqs.isEmpty()) {
+				waiting.remove(req.tid);
+			}
 		}
 	}
-	
-	public boolean isHoldLock(TransactionId tid, PageId pid){
-		return holdWriteLock(tid, pid) || holdReadLock(tid, pid);
+
+	/**
+	 * Recompute the waits-for edges of the requests waiting in a queue: the
+	 * holders they conflict with and the requests ahead of them they
+	 * conflict with, since those are granted first.
+	 */
+	private void updateBlockers(LockQueue queue) {
+		List<LockRequest> ahead = new ArrayList<LockRequest>();
+		for (LockRequest req : queue.waiters) {
+			Set<TransactionId> blockers = new HashSet<TransactionId>();
+			for (Map.Entry<TransactionId, LockMode> h : queue.holders.entrySet()) {
+				if (!h.getKey().equals(req.tid) && !req.mode.compatibleWith(h.getValue())) {
+					blockers.add(h.getKey());
+				}
+			}
+			for (LockRequest a : ahead) {
+				if (!a.tid.equals(req.tid) && !req.mode.compatibleWith(a.mode)) {
+					blockers.add(a.tid);
+				}
+			}
+			req.blockers = blockers;
+			ahead.add(req);
+		}
 	}
-	
-	private boolean holdWriteLock(TransactionId tid, PageId pid){
-		if(locks.get(pid) == null){
-			return false;
+
+	/**
+	 * Look for a cycle of waiting transactions through tid and, if there is
+	 * one, abort a victim on it. Called with the waits-for graph locked.
+	 */
+	private void detectDeadlock(TransactionId tid) {
+		List<TransactionId> cycle = findCycle(tid, tid, new ArrayList<TransactionId>(),
+				new HashSet<TransactionId>());
+		if (cycle == null) {
+			return;
+		}
+		deadlocks.incrementAndGet();
+		TransactionId victim = null;
+		int victimLocks = 0;
+		for (TransactionId t : cycle) {
+			HeldLocks h = held.get(t);
+			int locks = h == null ? 0 : h.modes.size();
+			if (victim == null || locks < victimLocks
+					|| (locks == victimLocks && t.getId() > victim.getId())) {
+				victim = t;
+				victimLocks = locks;
+			}
 		}
-		synchronized(locks.get(pid)) {
-			return tid.equals(writeLockHolders.get(pid));
+		for (LockRequest req : waiting.get(victim)) {
+			req.aborted = true;
+			LockSupport.unpark(req.thread);
 		}
 	}
 
-	private boolean holdReadLock(TransactionId tid, PageId pid){
-		if(locks.get(pid) == null){
-			return false;
+	/**
+	 * Depth-first search for a path from t back to start.
+	 *
+	 * @return the transactions on the cycle, or null if there is none
+	 */
+	private List<TransactionId> findCycle(TransactionId start, TransactionId t,
+			List<TransactionId> path, Set<TransactionId> visited) {
+		Set<LockRequest> reqs = waiting.get(t);
+		if (reqs == null || !visited.add(t)) {
+			return null;
+		}
+		path.add(t);
+		for (LockRequest req : reqs) {
+			if (req.aborted) {
+				// already being withdrawn
+				continue;
+			}
+			for (TransactionId next : req.blockers) {
+				if (next.equals(start)) {
+					return path;
+				}
+				List<TransactionId> cycle = findCycle(start, next, path, visited);
+				if (cycle != null) {
+					return cycle;
+				}
+			}
 		}
-		synchronized(locks.get(pid)) {
-			return readLockHolders.get(pid).contains(tid);
+		path.remove(path.size() - 1);
+		return null;
+	}
+
+	/**
+	 * Release the lock the transaction holds on the specified page, if any.
+	 * Intention locks on its table are kept until the transaction ends.
+	 */
+	public void releaseLock(TransactionId tid, PageId pid) {
+		if (release(tid, pid)) {
+			heldLocks(tid).count(new TableLock(pid.getTableId()), -1);
 		}
 	}
-	
-	public void releaseLock(TransactionId tid){
-		List<PageId> pageIds = new ArrayList<PageId>(dirtyPages.get(tid));
-		for(PageId pid: pageIds){
-			try {
-				releaseLock(tid, pid);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+
+	/** @return true if the transaction held a lock on the resource */
+	private boolean release(TransactionId tid, Object resource) {
+		int s = stripe(resource);
+		Map<Object, LockQueue> table = tables.get(s);
+		synchronized (latches[s]) {
+			LockQueue queue = table.get(resource);
+			if (queue == null || queue.holders.remove(tid) == null) {
+				return false;
 			}
+			grantWaiters(queue);
+			if (queue.holders.isEmpty() && queue.waiters.isEmpty()) {
+				table.remove(resource);
+			}
+		}
+		HeldLocks h = held.get(tid);
+		if (h != null) {
+			h.modes.remove(resource);
+		}
+		return true;
+	}
+
+	/**
+	 * Release every lock held by the transaction, and withdraw any request
+	 * of it that is still waiting.
+	 */
+	public void releaseLock(TransactionId tid) {
+		List<LockRequest> reqs;
+		synchronized (waiting) {
+			Set<LockRequest> w = waiting.get(tid);
+			reqs = w == null ? new ArrayList<LockRequest>() : new ArrayList<LockRequest>(w);
 		}
-		dirtyPages.put(tid, new ArrayList<PageId>());
+		for (LockRequest req : reqs) {
+			int s = stripe(req.resource);
+			synchronized (latches[s]) {
+				LockQueue queue = tables.get(s).get(req.resource);
+				if (queue != null && queue.waiters.remove(req)) {
+					req.aborted = true;
+					synchronized (waiting) {
+						stopWaiting(req);
+					}
+					grantWaiters(queue);
+					LockSupport.unpark(req.thread);
+				}
+			}
+		}
+
+		HeldLocks h = held.remove(tid);
+		if (h == null) {
+			return;
+		}
+		for (Object resource : h.modes.keySet()) {
+			release(tid, resource);
+		}
+	}
+
+	/**
+	 * @return true if the transaction holds a shared or exclusive lock on the
+	 *         specified page, directly or through a lock on its table, or an
+	 *         intention exclusive lock on the page for the records it changes
+	 */
+	public boolean isHoldLock(TransactionId tid, PageId pid) {
+		return holdsPage(tid, pid, true);
+	}
+
+	// true if the transaction holds a shared or exclusive lock on the page
+	// or its table, or with intention set, an intention exclusive lock on
+	// the page
+	private boolean holdsPage(TransactionId tid, PageId pid, boolean intention) {
+		HeldLocks h = held.get(tid);
+		if (h == null) {
+			return false;
+		}
+		LockMode page = h.modes.get(pid);
+		LockMode table = h.modes.get(new TableLock(pid.getTableId()));
+		return (page != null && (page.covers(LockMode.S) || (intention && page.covers(LockMode.IX))))
+				|| (table != null && table.covers(LockMode.S));
+	}
+
+	/**
+	 * @return true if some transaction may be changing the specified page: it
+	 *         holds an exclusive lock on the page or its table, or an
+	 *         intention exclusive lock on the page for a record lock
+	 */
+	public boolean isWriteLocked(PageId pid) {
+		return isWriteLocked(pid, null);
+	}
+
+	/**
+	 * @return true if a transaction other than the specified one may be
+	 *         changing the specified page
+	 * @see #isWriteLocked(PageId)
+	 */
+	public boolean isWriteLocked(PageId pid, TransactionId except) {
+		return holdsMode(pid, LockMode.IX, except)
+				|| holdsMode(new TableLock(pid.getTableId()), LockMode.X, except);
+	}
+
+	// true if some holder of the resource's lock other than except holds a
+	// mode covering mode
+	private boolean holdsMode(Object resource, LockMode mode, TransactionId except) {
+		int s = stripe(resource);
+		synchronized (latches[s]) {
+			LockQueue queue = tables.get(s).get(resource);
+			if (queue != null) {
+				for (Map.Entry<TransactionId, LockMode> e : queue.holders.entrySet()) {
+					if (e.getValue().covers(mode) && !e.getKey().equals(except)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if a transaction other than the specified one holds a
+	 *         lock on the specified record itself
+	 */
+	public boolean isLocked(RecordId rid, TransactionId except) {
+		return holdsMode(rid, LockMode.IS, except);
+	}
+
+	/**
+	 * @return true if the transaction holds a lock on the specified record,
+	 *         directly or through a lock on its page or table
+	 */
+	public boolean isHoldLock(TransactionId tid, RecordId rid) {
+		HeldLocks h = held.get(tid);
+		return h != null && (h.modes.containsKey(rid) || holdsPage(tid, rid.getPageId(), false));
 	}
 }
@@ -2,8 +2,16 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +40,13 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+
+Page latches ({@link BufferPool#latchPage}) come after the BufferPool
+lock and before the LogFile lock: a transaction logs its change to a
+page with the page latched.  Operations that latch pages, like
+rollback and writing pages, therefore do so outside the LogFile lock.
 */
 
 /**
@@ -39,8 +54,20 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> Every log record is identified by its log sequence number (LSN),
+the position of its first byte in the log as if the log had never
+been truncated.  LSNs only ever grow.
+
+<li> The log is stored in segment files of a fixed size next to the
+log file, each named after the log file and its sequence number: the
+byte with LSN l is at offset l % (segment size) of segment number
+l / (segment size).  Records may span two segments.
+
+<li> The log file itself is the manifest of the segments.  Its first
+long integer represents the LSN of the last written checkpoint, or -1
+if there are no checkpoints.  The second long integer is the LSN of the
+first record in the log; segments entirely before it are no longer
+needed and are deleted, or moved to the archive directory.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
@@ -48,33 +75,97 @@ records are variable length.
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN of the record.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, TUPLE_INSERT, TUPLE_DELETE and TUPLE_UPDATE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  Each image is the byte code of the page's class (see
+{@link PageTypes}), the page id, and the integer length of the page
+data followed by the data.  They can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods.  See
+LogFile.print() for an example.
+
+<li> TUPLE_INSERT, TUPLE_DELETE and TUPLE_UPDATE records describe the
+change of a single slot of a {@link SlottedPage}.  They consist of the
+page id (the byte code of its class, a byte count and the integers of
+PageId.serialize()), the integer slot number, and then the before
+image of the slot (for TUPLE_DELETE and TUPLE_UPDATE) followed by the
+after image (for TUPLE_INSERT and TUPLE_UPDATE), each an integer length
+followed by the serialized tuple.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id
+and a long integer first record LSN for each active transaction; then
+an integer count of dirty pages, and for each the page id (written like
+the page id of a TUPLE record) and the long integer LSN of the first
+record that dirtied it.
 
 </ul>
 
+<p> Records are serialized into an in-memory log buffer and written to
+the file when the buffer fills up or when the log is forced, so
+appending a record does not cost a system call.  The buffer may be
+written out in the middle of a record, so {@link #force(long)} makes
+the log durable up to a given end LSN: to make a record durable, force
+the log up to the end of the record, the value of {@link #getEndLsn}
+right after it was appended. <p>
+
+<p> <u> Group commit: </u>
+<p>
+
+By default every commit forces the log before it returns.  In group
+commit mode (see {@link #setGroupCommit}, or the system property
+simpledb.GroupCommit) a committing transaction only appends its
+commit record and then waits for a single flusher thread to force the
+log past it.  Commits that arrive while the flusher is forcing the log
+are all made durable by its next force, so one force is shared by as
+many transactions as commit during the previous one.
+
+<p> <u> Recovery: </u>
+<p>
+
+{@link #recover} follows ARIES.  An analysis pass reads forward from
+the last checkpoint to find the transactions that never finished (the
+losers) and the pages that may have changes not yet on disk.  A redo
+pass then repeats history: it reapplies every logged change to those
+pages from the oldest change that might be missing.  Because UPDATE
+records hold whole pages and TUPLE records whole slots, reapplying a
+change that already reached disk is harmless, so pages need not carry
+an LSN.  Finally an undo pass reads backward and rolls back the losers.
+Every change undone, by recovery or by {@link #rollback}, is logged as
+a compensating record of the same type with the before and after
+images swapped, so a crash during undo is recovered like any other.
+
 */
 
 public class LogFile {
 
-    final File logFile;
-    private RandomAccessFile raf;
+    /** System property that turns on group commit for new LogFiles. */
+    public static final String GROUP_COMMIT_PROPERTY = "simpledb.GroupCommit";
+
+    /** Size in bytes of the in-memory log buffer. */
+    public static final int LOG_BUFFER_SIZE = 64 * 1024;
+
+    /** Default size in bytes of a log segment. */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    final File logFile; // the manifest
+    private FileChannel manifest;
+    private final int segmentSize;
+    // the open segments, by sequence number
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<Long, FileChannel>(); //protected by this
+    // segments written since they were last forced
+    private final Set<FileChannel> unforced = new HashSet<FileChannel>(); //protected by this
+    // truncated segments go here instead of being deleted, if not null
+    private File archiveDir = null; //protected by this
+    // held while writing the manifest
+    private final Object manifestLock = new Object();
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +173,60 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int TUPLE_INSERT_RECORD = 6;
+    static final int TUPLE_DELETE_RECORD = 7;
+    static final int TUPLE_UPDATE_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    // no page id serializes to more integers than this
+    private final static int MAX_PAGE_ID_INTS = 16;
+
+    // records not yet written to the file; its first byte has LSN writtenLsn
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE); //protected by this
+    private final DataOutputStream out = new DataOutputStream(new BufferOutput());
+    private long writtenLsn = 0; //protected by this
+    // LSN of the first record in the log
+    private long firstLsn = 0; //protected by this
+    private long lastCheckpoint = NO_CHECKPOINT_ID; //protected by this
+    // redo starts here if the system crashes now: the last checkpoint,
+    // or the oldest change to a page that was dirty when it was taken
+    private long checkpointRedoLsn = NO_CHECKPOINT_ID; //protected by this
+    // the log is on disk up to here
+    private volatile long durableLsn = 0;
+    // held while forcing the file, so only one force runs at a time
+    private final Object forceLock = new Object();
+    // segments taken from unforced by a force that has not forced them
+    // yet, and the LSN up to which the log is durable once they are
+    private final Set<FileChannel> pending = new HashSet<FileChannel>(); //protected by pending
+    private long pendingLsn = 0; //protected by pending
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    private LogFlusher flusher = null; //protected by this
+
+    /** System property that sets the checkpoint interval of new
+        LogFiles, in bytes of log.  See {@link #setCheckpointInterval}. */
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "simpledb.CheckpointInterval";
+
+    private long checkpointInterval = 0; //protected by this
+    private Checkpointer checkpointer = null; //protected by this
+    private boolean checkpointRequested = false; //protected by this
+    // held while taking a checkpoint
+    private final Object checkpointLock = new Object();
+
+    /** System property that sets the number of threads new LogFiles
+        redo changes with during recovery.  See {@link #setRedoThreads}. */
+    public static final String REDO_THREADS_PROPERTY = "simpledb.RedoThreads";
+
+    // records read ahead of each redo thread
+    private final static int REDO_QUEUE_SIZE = 1024;
+    private int redoThreads; //protected by this
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,9 +239,25 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name
+        @param segmentSize The size in bytes of the log's segment files
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size must be positive");
+        }
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this.segmentSize = segmentSize;
+        manifest = open(f);
         recoveryUndecided = true;
+        setGroupCommit(Boolean.getBoolean(GROUP_COMMIT_PROPERTY));
+        setCheckpointInterval(Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 0));
+        setRedoThreads(Integer.getInteger(REDO_THREADS_PROPERTY,
+                                          Runtime.getRuntime().availableProcessors()));
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -120,70 +270,394 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        maybeRequestCheckpoint();
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            closeSegments();
+            for (File segment : segmentFiles()) {
+                Files.delete(segment.toPath());
+            }
+            buffer.clear();
+            firstLsn = 0;
+            writtenLsn = 0;
+            durableLsn = 0;
+            lastCheckpoint = NO_CHECKPOINT_ID;
+            checkpointRedoLsn = NO_CHECKPOINT_ID;
+            writeManifest(lastCheckpoint, firstLsn);
+        }
+    }
+
+    // pick up where an existing log file left off
+    private void readHeader() throws IOException {
+        buffer.clear();
+        closeSegments();
+        if (manifest.size() < HEADER_SIZE) {
+            lastCheckpoint = NO_CHECKPOINT_ID;
+            firstLsn = 0;
+            writeManifest(lastCheckpoint, firstLsn);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (manifest.read(header, header.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            header.flip();
+            lastCheckpoint = header.getLong();
+            firstLsn = header.getLong();
+        }
+        // finish a truncation the system crashed in the middle of
+        for (File f : segmentFiles()) {
+            if (segmentNumber(f) < firstLsn / segmentSize) {
+                Files.delete(f.toPath());
+            }
+        }
+        // the log continues through every segment present after the first
+        writtenLsn = firstLsn;
+        for (long seg = firstLsn / segmentSize; segmentFile(seg).exists(); seg++) {
+            writtenLsn = Math.max(firstLsn, seg * segmentSize + segment(seg).size());
+        }
+        durableLsn = writtenLsn;
+        // the checkpoint's dirty pages are not known until it is read
+        checkpointRedoLsn = firstLsn;
+    }
+
+    // write the manifest and force it; callers other than recovery and
+    // the first append go through updateManifest()
+    private void writeManifest(long checkpoint, long first) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(checkpoint);
+        header.putLong(first);
+        header.flip();
+        while (header.hasRemaining()) {
+            manifest.write(header, header.position());
+        }
+        manifest.force(true);
+    }
+
+    // record the current checkpoint and start of the log in the manifest,
+    // without holding the LogFile lock while it is forced
+    private void updateManifest() throws IOException {
+        synchronized (manifestLock) {
+            long checkpoint;
+            long first;
+            synchronized (this) {
+                checkpoint = lastCheckpoint;
+                first = firstLsn;
+            }
+            writeManifest(checkpoint, first);
+        }
+    }
+
+    File segmentFile(long seg) {
+        return new File(logFile.getAbsoluteFile().getParentFile(),
+                        logFile.getName() + "." + String.format("%08d", seg));
+    }
+
+    // the segment files on disk, whether or not they are still in the log
+    private List<File> segmentFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] all = logFile.getAbsoluteFile().getParentFile().listFiles();
+        String prefix = logFile.getName() + ".";
+        if (all != null) {
+            for (File f : all) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]{8,}")) {
+                    files.add(f);
+                }
+            }
+        }
+        return files;
+    }
+
+    private long segmentNumber(File segment) {
+        return Long.parseLong(segment.getName().substring(logFile.getName().length() + 1));
+    }
+
+    // the channel of the specified segment, creating the segment if needed
+    private FileChannel segment(long seg) throws IOException {
+        FileChannel ch = segments.get(seg);
+        if (ch == null) {
+            ch = open(segmentFile(seg));
+            segments.put(seg, ch);
+        }
+        return ch;
+    }
+
+    private void closeSegments() throws IOException {
+        synchronized (forceLock) {
+            for (FileChannel ch : segments.values()) {
+                ch.close();
+            }
+        }
+        segments.clear();
+        unforced.clear();
+        synchronized (pending) {
+            pending.clear();
+            pendingLsn = 0;
+        }
+    }
+
+    // cut the log off at the specified LSN, which must not be durable yet
+    // or must be the end of a torn log
+    private void truncateTail(long lsn) throws IOException {
+        long last = lsn / segmentSize;
+        for (File f : segmentFiles()) {
+            long seg = segmentNumber(f);
+            if (seg > last) {
+                FileChannel ch = segments.remove(seg);
+                if (ch != null) {
+                    ch.close();
+                }
+                Files.delete(f.toPath());
+            }
+        }
+        if (segmentFile(last).exists()) {
+            segment(last).truncate(lsn % segmentSize);
+        }
+        writtenLsn = lsn;
+        durableLsn = lsn;
+        synchronized (pending) {
+            pendingLsn = Math.min(pendingLsn, lsn);
+        }
+    }
+
+    // LSN of the next record to be appended
+    private long endLsn() {
+        return writtenLsn + buffer.position();
+    }
+
+    // write the log buffer to the segments, without forcing them
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            FileChannel ch = segment(writtenLsn / segmentSize);
+            long pos = writtenLsn % segmentSize;
+            int n = (int) Math.min(buffer.remaining(), segmentSize - pos);
+            ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + n);
+            while (part.hasRemaining()) {
+                pos += ch.write(part, pos);
+            }
+            buffer.position(part.position());
+            unforced.add(ch);
+            writtenLsn += n;
+        }
+        buffer.clear();
+    }
+
+    /** Appends to the log buffer, writing it out whenever it fills up. */
+    private class BufferOutput extends OutputStream {
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            buffer.put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    writeBuffer();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
+        @return The LSN of the abort record
     */
-    public void logAbort(TransactionId tid) throws IOException {
+    public long logAbort(TransactionId tid) throws IOException {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
         synchronized (Database.getBufferPool()) {
+            // must do this first, since rollback only works for live
+            // transactions (needs tidToFirstLogRecord); it latches pages,
+            // so it cannot run under the LogFile lock
+            rollback(tid);
 
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                long lsn = appendAbort(tid.getId());
+                forceTo(endLsn());
                 tidToFirstLogRecord.remove(tid.getId());
+                return lsn;
             }
         }
     }
 
+    private long appendAbort(long tid) throws IOException {
+        long lsn = endLsn();
+        out.writeInt(ABORT_RECORD);
+        out.writeLong(tid);
+        out.writeLong(lsn);
+        return lsn;
+    }
+
+    /** Turn group commit on or off.  With group commit on, logCommit
+        leaves forcing the log to a flusher thread that forces it once
+        for all the transactions committing at the same time.
+
+        @param enabled Whether to use group commit
+    */
+    public synchronized void setGroupCommit(boolean enabled) {
+        if (enabled && flusher == null) {
+            flusher = new LogFlusher();
+            flusher.start();
+        } else if (!enabled && flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+
+    /** Returns true if commits are forced by the group commit flusher. */
+    public synchronized boolean isGroupCommit() {
+        return flusher != null;
+    }
+
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  In group commit mode, this waits
+        until the flusher thread has forced the log past the record.
 
         @param tid The committing transaction.
+        @return The LSN of the commit record
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public long logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        long end;
+        CompletableFuture<Void> durable = null;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = endLsn();
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(lsn);
+            end = endLsn();
+            tidToFirstLogRecord.remove(tid.getId());
+            if (flusher != null) {
+                durable = flusher.flushTo(end);
+            }
+        }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        // the log is forced without holding the LogFile lock, so other
+        // transactions can append while we wait
+        if (durable == null) {
+            forceTo(end);
+            return lsn;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    durable.get();
+                    return lsn;
+                } catch (InterruptedException e) {
+                    // the commit record is already in the log, so the
+                    // caller has to learn whether it is durable
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IOException("log force failed", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** The group commit flusher.  Commits queue the end LSN of their
+        commit record and wait on a future, which the flusher completes
+        once a force has made the log durable up to that LSN. */
+    private class LogFlusher extends Thread {
+        // end LSN each waiting commit needs forced, in increasing order
+        private final LinkedList<Long> lsns = new LinkedList<Long>();
+        private final LinkedList<CompletableFuture<Void>> waiters =
+            new LinkedList<CompletableFuture<Void>>();
+        private boolean running = true; // protected by this
+
+        LogFlusher() {
+            super("simpledb-log-flusher");
+            setDaemon(true);
+        }
+
+        synchronized CompletableFuture<Void> flushTo(long endLsn) {
+            CompletableFuture<Void> f = new CompletableFuture<Void>();
+            lsns.add(endLsn);
+            waiters.add(f);
+            notifyAll();
+            return f;
+        }
+
+        synchronized void shutdown() {
+            running = false;
+            notifyAll();
+        }
+
+        public void run() {
+            while (true) {
+                long target;
+                synchronized (this) {
+                    while (running && waiters.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // only shutdown() stops the flusher
+                        }
+                    }
+                    if (waiters.isEmpty()) {
+                        return;
+                    }
+                    target = lsns.getLast();
+                }
+
+                // force() writes out everything appended so far, so this
+                // also covers commits that queue up while it runs
+                IOException error = null;
+                try {
+                    forceTo(target);
+                } catch (IOException e) {
+                    error = e;
+                }
+
+                synchronized (this) {
+                    while (!waiters.isEmpty() && (error != null || lsns.getFirst() <= durableLsn)) {
+                        lsns.removeFirst();
+                        CompletableFuture<Void> f = waiters.removeFirst();
+                        if (error == null) {
+                            f.complete(null);
+                        } else {
+                            f.completeExceptionally(error);
+                        }
+                    }
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,13 +665,14 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The LSN of the update record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + endLsn());
         preAppend();
         /* update record conists of
 
@@ -207,99 +682,113 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        long lsn = endLsn();
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.writeLong(lsn);
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE OFFSET = " + endLsn());
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Write a record for the change of a single slot of a SlottedPage.
+        The record is a TUPLE_INSERT record if before is null, a
+        TUPLE_DELETE record if after is null, and a TUPLE_UPDATE record
+        otherwise.
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        @param tid The transaction performing the write
+        @param rid The slot that changed
+        @param before The serialized tuple the slot held, or null
+        @param after The serialized tuple the slot holds now, or null
+        @return The LSN of the record
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        @see simpledb.SlottedPage#takeSlotChanges
+    */
+    public synchronized long logTupleWrite(TransactionId tid, RecordId rid,
+                                           byte[] before, byte[] after)
+        throws IOException {
+        if (before == null && after == null) {
+            throw new IllegalArgumentException("no change to log");
+        }
+        preAppend();
+        long lsn = endLsn();
+        out.writeInt(before == null ? TUPLE_INSERT_RECORD
+                     : after == null ? TUPLE_DELETE_RECORD : TUPLE_UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        writePageId(out, rid.getPageId());
+        out.writeInt(rid.getTupleNumber());
+        if (before != null) {
+            out.writeInt(before.length);
+            out.write(before);
+        }
+        if (after != null) {
+            out.writeInt(after.length);
+            out.write(after);
+        }
+        out.writeLong(lsn);
+        return lsn;
+    }
 
-        raf.writeInt(pageInfo.length);
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        raf.writeByte(PageTypes.codeOf(pid));
+        raf.writeByte(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
+    PageId readPageId(DataInput raf) throws IOException {
+        byte code = raf.readByte();
+        int numIdArgs = raf.readByte();
+        if (numIdArgs < 0 || numIdArgs > MAX_PAGE_ID_INTS) {
+            throw new IOException("corrupt page id");
+        }
+        int idArgs[] = new int[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = raf.readInt();
+        }
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+            return PageTypes.createPageId(code, idArgs);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt page id");
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        //page data is:
+        // page type code (see PageTypes)
+        // page id (see writePageId)
+        // page data length
+        // page data
+        raf.writeByte(PageTypes.codeOf(p));
+        writePageId(raf, p.getId());
+        byte[] pageData = p.getPageData();
+        raf.writeInt(pageData.length);
+        raf.write(pageData);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    Page readPageData(DataInput raf) throws IOException {
+        byte code = raf.readByte();
+        PageId pid = readPageId(raf);
+        int pageSize = raf.readInt();
+        if (pageSize < 0 || pageSize > BufferPool.getPageSize()) {
+            throw new IOException("corrupt page image");
         }
-        return newPage;
-
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+        return PageTypes.createPage(code, pid, pageData);
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
+        @return The LSN of the begin record
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public synchronized long logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,150 +796,247 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        long lsn = endLsn();
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(lsn);
+        tidToFirstLogRecord.put(tid.getId(), lsn);
+
+        Debug.log("BEGIN OFFSET = " + endLsn());
+        return lsn;
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Write a fuzzy checkpoint record and truncate the log.  The
+        checkpoint records the running transactions and the dirty page
+        table without writing any pages, so transactions keep running
+        while it is taken: recovery redoes the changes to pages that
+        were dirty from the oldest change recorded for them. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        // one checkpoint at a time, but without holding the BufferPool
+        // lock, so the checkpoint does not stall transactions
+        synchronized (checkpointLock) {
+            long lsn;
+            long end;
+            long redoLsn;
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + endLsn());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                lsn = endLsn();
+                out.writeInt(CHECKPOINT_RECORD);
+                out.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                out.writeInt(tidToFirstLogRecord.size());
+                for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                    out.writeLong(e.getKey());
+                    out.writeLong(e.getValue());
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                //write the dirty page table; pages enter it before their
+                // first record is logged, so it covers every record so far
+                redoLsn = lsn;
+                Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+                out.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                    writePageId(out, e.getKey());
+                    out.writeLong(e.getValue());
+                    redoLsn = Math.min(redoLsn, e.getValue());
+                }
+                out.writeLong(lsn);
+                end = endLsn();
+                checkpointRequested = false;
             }
-        }
 
-        logTruncate();
+            // recovery may only start from a checkpoint that is on disk
+            forceTo(end);
+            synchronized (this) {
+                // the log may have been truncated by recovery meanwhile
+                if (lsn < firstLsn) {
+                    return;
+                }
+                lastCheckpoint = lsn;
+                checkpointRedoLsn = redoLsn;
+            }
+            updateManifest();
+            logTruncate();
+        }
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+    /** Take a checkpoint in the background whenever the specified
+        number of bytes has been logged since the last one.
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        @param bytes The log size between checkpoints, or 0 to only take
+        checkpoints when logCheckpoint() is called
+    */
+    public synchronized void setCheckpointInterval(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("negative checkpoint interval");
+        }
+        checkpointInterval = bytes;
+        if (bytes > 0 && checkpointer == null) {
+            checkpointer = new Checkpointer();
+            checkpointer.start();
+        } else if (bytes == 0 && checkpointer != null) {
+            checkpointer.shutdown();
+            checkpointer = null;
+        }
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+    /** Returns the log size between background checkpoints, or 0. */
+    public synchronized long getCheckpointInterval() {
+        return checkpointInterval;
+    }
 
-            int numOutstanding = raf.readInt();
+    /** Redo the changes in the log with the specified number of
+        threads during recovery.  Each thread redoes the changes to a
+        fixed subset of the pages, in log order.
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        @param threads The number of redo threads, at least 1
+    */
+    public synchronized void setRedoThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("need at least one redo thread");
         }
+        redoThreads = threads;
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    /** Returns the number of threads recovery redoes changes with. */
+    public synchronized int getRedoThreads() {
+        return redoThreads;
+    }
 
-        raf.seek(minLogRecord);
+    /** Returns the LSN of the last checkpoint on disk, or -1. */
+    synchronized long getLastCheckpoint() {
+        return lastCheckpoint;
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+    /** Returns the LSN the next record appended to the log will get. */
+    public synchronized long getEndLsn() {
+        return endLsn();
+    }
 
-                Debug.log("NEW START = " + newStart);
+    // called on every append
+    private void maybeRequestCheckpoint() {
+        if (checkpointer != null && !checkpointRequested
+            && endLsn() - Math.max(lastCheckpoint, firstLsn) >= checkpointInterval) {
+            checkpointRequested = true;
+            checkpointer.request();
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** The checkpoint scheduler.  Appends request a checkpoint once the
+        log has grown by the checkpoint interval, and this thread takes
+        it, so no transaction waits for one. */
+    private class Checkpointer extends Thread {
+        private boolean requested = false; // protected by this
+        private boolean running = true; // protected by this
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        Checkpointer() {
+            super("simpledb-checkpointer");
+            setDaemon(true);
+        }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+        synchronized void request() {
+            requested = true;
+            notifyAll();
+        }
+
+        synchronized void shutdown() {
+            running = false;
+            notifyAll();
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    while (running && !requested) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // only shutdown() stops the checkpointer
+                        }
                     }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                    if (!running) {
+                        return;
+                    }
+                    requested = false;
                 }
+                try {
+                    logCheckpoint();
+                } catch (IOException e) {
+                    System.err.println("background checkpoint failed");
+                    e.printStackTrace();
+                    synchronized (LogFile.this) {
+                        checkpointRequested = false;
+                    }
+                }
+            }
+        }
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  The start of the log moves up to the oldest record
+        still needed, and the segments before it are deleted, or
+        archived if an archive directory is set.  Appends can go on
+        while the segments are removed. */
+    public void logTruncate() throws IOException {
+        List<FileChannel> dropped = new ArrayList<FileChannel>();
+        List<File> files = new ArrayList<File>();
+        File archive;
+        synchronized (this) {
+            preAppend();
+            if (lastCheckpoint == NO_CHECKPOINT_ID) {
+                return;
+            }
 
-            } catch (EOFException e) {
-                break;
+            // records of transactions still running may be needed for
+            // rollback, and records of pages still dirty for redo
+            long minLogRecord = Math.min(lastCheckpoint, checkpointRedoLsn);
+            for (Long firstLogRecord : tidToFirstLogRecord.values()) {
+                if (firstLogRecord < minLogRecord) {
+                    minLogRecord = firstLogRecord;
+                }
+            }
+            if (minLogRecord <= firstLsn) {
+                return;
+            }
+            Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+            firstLsn = minLogRecord;
+            Map<Long, FileChannel> before = segments.headMap(minLogRecord / segmentSize);
+            for (Map.Entry<Long, FileChannel> e : before.entrySet()) {
+                files.add(segmentFile(e.getKey()));
+                dropped.add(e.getValue());
+                unforced.remove(e.getValue());
             }
+            before.clear();
+            archive = archiveDir;
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // the segments may only go once the manifest no longer needs them
+        updateManifest();
+        synchronized (forceLock) {
+            for (FileChannel ch : dropped) {
+                ch.close();
+            }
+        }
+        for (File f : files) {
+            if (archive == null) {
+                Files.deleteIfExists(f.toPath());
+            } else {
+                Files.move(f.toPath(), new File(archive, f.getName()).toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Keep the segments that truncation removes from the log in the
+        specified directory instead of deleting them.
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        @param dir The archive directory, or null to delete segments
+    */
+    public synchronized void setArchiveDirectory(File dir) {
+        archiveDir = dir;
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -464,9 +1050,297 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            List<LogRecord> changes;
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long firstLogRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstLogRecord == null) {
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                }
+                changes = changesOf(Collections.singletonMap(tid.getId(), tid), firstLogRecord);
+            }
+            // undoing a change latches its page, and a transaction
+            // holding a latch may be waiting for the LogFile lock to log
+            // its own change, so the changes are undone outside it
+            for (LogRecord rec : changes) {
+                undo(rec, tid);
+            }
+            // under FORCE, write the undone pages, so that the restore of
+            // the before images on abort also holds for pages on disk
+            if (!Database.getBufferPool().isStealNoForce()) {
+                Database.getBufferPool().flushPages(tid);
+            }
+        }
+    }
+
+    // undo the changes of the specified transactions, reading the log
+    // backward from its end to stopLsn
+    private void undo(Map<Long, TransactionId> losers, long stopLsn) throws IOException {
+        for (LogRecord rec : changesOf(losers, stopLsn)) {
+            undo(rec, losers.get(rec.tid));
+        }
+    }
+
+    // the change records of the specified transactions, newest first,
+    // from the end of the log back to stopLsn
+    private synchronized List<LogRecord> changesOf(Map<Long, TransactionId> losers, long stopLsn)
+        throws IOException {
+        writeBuffer();
+        List<LogRecord> changes = new ArrayList<LogRecord>();
+        LogReader reader = new LogReader();
+        long lsn = endLsn();
+        while (lsn > stopLsn) {
+            reader.seek(lsn - LONG_SIZE);
+            lsn = reader.in.readLong();
+            reader.seek(lsn);
+            LogRecord rec = readRecord(reader);
+            if (rec == null) {
+                throw new IOException("corrupt log record at " + lsn);
+            }
+            if (losers.containsKey(rec.tid) && rec.isChange()) {
+                changes.add(rec);
+            }
+        }
+        return changes;
+    }
+
+    // undo a single change, logging a compensating record; the page is
+    // latched from the change until the record is logged. The caller
+    // holds the BufferPool lock, so putRecoveredPage does not wait for
+    // it under the latch.
+    private void undo(LogRecord rec, TransactionId tid) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        try {
+            if (rec.type == UPDATE_RECORD) {
+                Page before = rec.beforePage();
+                bp.latchPage(rec.pid);
+                try {
+                    long clr;
+                    long end;
+                    synchronized (this) {
+                        clr = logWrite(tid, rec.afterPage(), before);
+                        end = endLsn();
+                    }
+                    bp.putRecoveredPage(before, tid, clr, end);
+                } finally {
+                    bp.unlatchPage(rec.pid);
+                }
+            } else {
+                Page p = bp.getPageForRecovery(tid, rec.pid);
+                bp.latchPage(rec.pid);
+                try {
+                    ((SlottedPage) p).setSlotData(rec.slot, rec.before);
+                    long clr;
+                    long end;
+                    synchronized (this) {
+                        clr = logTupleWrite(tid, new RecordId(rec.pid, rec.slot), rec.after, rec.before);
+                        end = endLsn();
+                    }
+                    bp.putRecoveredPage(p, tid, clr, end);
+                } finally {
+                    bp.unlatchPage(rec.pid);
+                }
+            }
+        } catch (DbException e) {
+            throw new IOException("could not undo log record " + rec.lsn, e);
+        }
+    }
+
+    // repeat history: redo the changes to the pages in the dirty page
+    // table from the reader's position on, spreading the pages over the
+    // redo threads by the hash of their ids
+    private void redo(LogReader reader, Map<PageId, Long> dirtyPages) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        // redo threads may write pages out before recovery is done
+        forceTo(writtenLsn);
+        RedoWorker[] workers = new RedoWorker[redoThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker(i, Math.max(1, bp.getNumPages() / workers.length));
+        }
+        // changes go to the pages in the pool, if they are there
+        for (PageId pid : dirtyPages.keySet()) {
+            Page p = bp.getBufferedPage(pid);
+            if (p != null) {
+                workers[partition(pid, workers.length)].addBufferedPage(p);
+            }
+        }
+        for (RedoWorker w : workers) {
+            w.start();
+        }
+        try {
+            while (reader.getLsn() < writtenLsn) {
+                LogRecord rec = readRecord(reader);
+                if (rec == null) {
+                    throw new IOException("corrupt log record at " + reader.getLsn());
+                }
+                if (!rec.isChange()) {
+                    continue;
+                }
+                Long recLsn = dirtyPages.get(rec.getPageId());
+                if (recLsn == null || rec.lsn < recLsn) {
+                    continue;
+                }
+                workers[partition(rec.getPageId(), workers.length)].add(rec);
+            }
+        } finally {
+            for (RedoWorker w : workers) {
+                w.finish();
+            }
+        }
+        for (RedoWorker w : workers) {
+            w.install(bp);
+        }
+    }
+
+    private static int partition(PageId pid, int partitions) {
+        return (pid.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /** A page being redone, and the range of records redone on it. */
+    private static class RedoPage {
+        Page page;
+        long tid;
+        long firstLsn;
+        // end of the last record redone
+        long lastEnd;
+        // the page is the BufferPool's, so it must stay in memory
+        boolean buffered;
+    }
+
+    /** A redo thread.  It applies the changes recover() hands it to its
+        own copies of the pages, in log order, and writes pages out when
+        it holds more than its share of the BufferPool, so it never takes
+        the BufferPool lock, which recover() holds.  Once the log has
+        been read, recover() installs the remaining pages in the pool. */
+    private class RedoWorker extends Thread {
+        private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(REDO_QUEUE_SIZE);
+        private final LogRecord done = new LogRecord(ABORT_RECORD, -1, -1);
+        private final int maxPages;
+        private final Map<PageId, RedoPage> pages = new HashMap<PageId, RedoPage>();
+        // pages of tables no longer in the catalog
+        private final Set<PageId> dropped = new HashSet<PageId>();
+        private volatile Throwable error = null;
+
+        RedoWorker(int i, int maxPages) {
+            super("simpledb-redo-" + i);
+            setDaemon(true);
+            this.maxPages = maxPages;
+        }
+
+        // only before the thread starts
+        void addBufferedPage(Page p) {
+            RedoPage rp = new RedoPage();
+            rp.page = p;
+            rp.firstLsn = -1;
+            rp.buffered = true;
+            pages.put(p.getId(), rp);
+        }
+
+        void add(LogRecord rec) throws IOException {
+            try {
+                queue.put(rec);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        // wait for the thread to redo the records it was handed
+        void finish() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(done);
+                    join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void install(BufferPool bp) throws IOException {
+            if (error != null) {
+                throw new IOException("redo failed", error);
+            }
+            for (RedoPage rp : pages.values()) {
+                if (rp.firstLsn < 0) {
+                    continue; // a buffered page with nothing to redo
+                }
+                TransactionId tid = new TransactionId(rp.tid);
+                try {
+                    bp.putRecoveredPage(rp.page, tid, rp.firstLsn, rp.lastEnd);
+                } catch (DbException e) {
+                    throw new IOException("could not install redone page", e);
+                }
+            }
+        }
+
+        public void run() {
+            while (true) {
+                LogRecord rec;
+                try {
+                    rec = queue.take();
+                } catch (InterruptedException e) {
+                    continue; // only the end of the log stops the thread
+                }
+                if (rec == done) {
+                    return;
+                }
+                // after a failure, drain the queue so recover() is not blocked
+                if (error == null && !dropped.contains(rec.getPageId())) {
+                    try {
+                        redo(rec);
+                    } catch (NoSuchElementException e) {
+                        // the page's table is no longer in the catalog
+                        dropped.add(rec.getPageId());
+                        pages.remove(rec.getPageId());
+                    } catch (Throwable t) {
+                        error = t;
+                    }
+                }
+            }
+        }
+
+        // reapply a single change
+        private void redo(LogRecord rec) throws IOException {
+            PageId pid = rec.getPageId();
+            RedoPage rp = pages.get(pid);
+            if (rp == null) {
+                if (pages.size() >= maxPages) {
+                    writePages();
+                }
+                rp = new RedoPage();
+                rp.firstLsn = -1;
+                pages.put(pid, rp);
+            }
+            if (rec.type == UPDATE_RECORD) {
+                rp.page = rec.afterPage();
+            } else {
+                if (rp.page == null) {
+                    rp.page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                }
+                ((SlottedPage) rp.page).setSlotData(rec.slot, rec.after);
+            }
+            if (rp.firstLsn < 0) {
+                rp.firstLsn = rec.lsn;
+            }
+            rp.tid = rec.tid;
+            rp.lastEnd = rec.end;
+        }
+
+        // write out the pages that are not the BufferPool's; the log is
+        // durable past every change they have
+        private void writePages() throws IOException {
+            Iterator<RedoPage> it = pages.values().iterator();
+            while (it.hasNext()) {
+                RedoPage rp = it.next();
+                if (!rp.buffered) {
+                    Database.getCatalog().getDatabaseFile(rp.page.getId().getTableId()).writePage(rp.page);
+                    it.remove();
+                }
             }
         }
     }
@@ -475,10 +1349,16 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            setCheckpointInterval(0);
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            setGroupCommit(false);
+            force();
+            synchronized (this) {
+                closeSegments();
+                manifest.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -493,18 +1373,394 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                readHeader();
+
+                // analysis: find the losers and the pages that may be
+                // missing changes, from the last checkpoint on
+                Map<Long, Long> active = new HashMap<Long, Long>();
+                Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+                long maxTid = -1;
+                LogReader reader = new LogReader();
+                reader.seek(lastCheckpoint == NO_CHECKPOINT_ID ? firstLsn : lastCheckpoint);
+                while (reader.getLsn() < writtenLsn) {
+                    long lsn = reader.getLsn();
+                    LogRecord rec = readRecord(reader);
+                    if (rec == null) {
+                        // the tail of the log was never completely written
+                        Debug.log("TRUNCATING TORN LOG TAIL AT " + lsn);
+                        truncateTail(lsn);
+                        break;
+                    }
+                    maxTid = Math.max(maxTid, rec.tid);
+                    switch (rec.type) {
+                    case CHECKPOINT_RECORD:
+                        active.putAll(rec.activeTxns);
+                        dirtyPages.putAll(rec.dirtyPages);
+                        break;
+                    case BEGIN_RECORD:
+                        active.put(rec.tid, rec.lsn);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        active.remove(rec.tid);
+                        break;
+                    default:
+                        if (!active.containsKey(rec.tid)) {
+                            active.put(rec.tid, rec.lsn);
+                        }
+                        if (!dirtyPages.containsKey(rec.getPageId())) {
+                            dirtyPages.put(rec.getPageId(), rec.lsn);
+                        }
+                    }
+                }
+                for (long tid : active.keySet()) {
+                    maxTid = Math.max(maxTid, tid);
+                }
+
+                // redo: repeat history for the dirty pages
+                if (!dirtyPages.isEmpty()) {
+                    reader.seek(Collections.min(dirtyPages.values()));
+                    redo(reader, dirtyPages);
+                }
+
+                // undo: roll back the losers together, then log their aborts
+                if (!active.isEmpty()) {
+                    Map<Long, TransactionId> losers = new HashMap<Long, TransactionId>();
+                    for (long tid : active.keySet()) {
+                        losers.put(tid, new TransactionId(tid));
+                    }
+                    undo(losers, Collections.min(active.values()));
+                    for (long tid : active.keySet()) {
+                        appendAbort(tid);
+                    }
+                }
+
+                // new transactions must not reuse the ids in the log
+                if (maxTid >= 0) {
+                    new TransactionId(maxTid);
+                }
+                tidToFirstLogRecord.clear();
             }
+            // writing latches the pages, which must not happen under
+            // the LogFile lock
+            Database.getBufferPool().flushAllPages();
          }
+        // checkpoints take the LogFile lock after the checkpoint lock
+        logCheckpoint();
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            writeBuffer();
+            System.out.println("LOG " + logFile + ": checkpoint " + lastCheckpoint
+                               + ", records " + firstLsn + " to " + writtenLsn);
+            LogReader reader = new LogReader();
+            reader.seek(firstLsn);
+            while (reader.getLsn() < writtenLsn) {
+                long lsn = reader.getLsn();
+                LogRecord rec = readRecord(reader);
+                if (rec == null) {
+                    System.out.println(lsn + ": CORRUPT");
+                    return;
+                }
+                System.out.println(rec);
+            }
+        }
+    }
+
+    /** A log record read back from the file. */
+    static class LogRecord {
+        final int type;
+        final long tid;
+        final long lsn;
+        // LSN of the byte after the record; set when it is read
+        long end;
+        // TUPLE and UPDATE records
+        PageId pid;
+        byte[] before;
+        byte[] after;
+        // TUPLE records
+        int slot;
+        // UPDATE records, whose before and after are page images
+        byte pageType;
+        // CHECKPOINT records
+        Map<Long, Long> activeTxns;
+        Map<PageId, Long> dirtyPages;
+
+        LogRecord(int type, long tid, long lsn) {
+            this.type = type;
+            this.tid = tid;
+            this.lsn = lsn;
+        }
+
+        /** Returns true if this record describes a change to a page. */
+        boolean isChange() {
+            return type == UPDATE_RECORD || type >= TUPLE_INSERT_RECORD;
+        }
+
+        /** Returns the page a change record describes. */
+        PageId getPageId() {
+            return pid;
+        }
+
+        /** Returns the before image of an UPDATE record.  Pages are
+            only created when needed, as that parses all of their
+            tuples. */
+        Page beforePage() throws IOException {
+            return PageTypes.createPage(pageType, pid, before);
+        }
+
+        /** Returns the after image of an UPDATE record. */
+        Page afterPage() throws IOException {
+            return PageTypes.createPage(pageType, pid, after);
+        }
+
+        public String toString() {
+            String[] names = { null, "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT",
+                               "TUPLE_INSERT", "TUPLE_DELETE", "TUPLE_UPDATE" };
+            String str = lsn + ": " + names[type] + " tid " + tid;
+            if (type == CHECKPOINT_RECORD) {
+                str += " active " + activeTxns + " dirty " + dirtyPages;
+            } else if (type == UPDATE_RECORD) {
+                str += " page " + pid.getTableId() + ":" + pid.getPageNumber();
+            } else if (isChange()) {
+                str += " page " + pid.getTableId() + ":" + pid.getPageNumber() + " slot " + slot;
+            }
+            return str;
+        }
+    }
+
+    // read the record at the reader's position, leaving the reader after
+    // it; returns null if the record is incomplete or not a record at all
+    private LogRecord readRecord(LogReader reader) throws IOException {
+        DataInputStream in = reader.in;
+        long lsn = reader.getLsn();
+        try {
+            int type = in.readInt();
+            if (type < ABORT_RECORD || type > TUPLE_UPDATE_RECORD) {
+                return null;
+            }
+            LogRecord rec = new LogRecord(type, in.readLong(), lsn);
+            switch (type) {
+            case UPDATE_RECORD:
+                rec.pageType = in.readByte();
+                rec.pid = readPageId(in);
+                if ((rec.before = readSlotData(in)) == null) {
+                    return null;
+                }
+                // the after image is of the same page
+                if (in.readByte() != rec.pageType || !readPageId(in).equals(rec.pid)
+                    || (rec.after = readSlotData(in)) == null) {
+                    return null;
+                }
+                break;
+            case CHECKPOINT_RECORD:
+                int count = in.readInt();
+                if (count < 0) {
+                    return null;
+                }
+                rec.activeTxns = new HashMap<Long, Long>();
+                for (int i = 0; i < count; i++) {
+                    long tid = in.readLong();
+                    rec.activeTxns.put(tid, in.readLong());
+                }
+                count = in.readInt();
+                if (count < 0) {
+                    return null;
+                }
+                rec.dirtyPages = new HashMap<PageId, Long>();
+                for (int i = 0; i < count; i++) {
+                    PageId pid = readPageId(in);
+                    rec.dirtyPages.put(pid, in.readLong());
+                }
+                break;
+            case TUPLE_INSERT_RECORD:
+            case TUPLE_DELETE_RECORD:
+            case TUPLE_UPDATE_RECORD:
+                rec.pid = readPageId(in);
+                rec.slot = in.readInt();
+                if (type != TUPLE_INSERT_RECORD && (rec.before = readSlotData(in)) == null) {
+                    return null;
+                }
+                if (type != TUPLE_DELETE_RECORD && (rec.after = readSlotData(in)) == null) {
+                    return null;
+                }
+                break;
+            }
+            if (in.readLong() != lsn) {
+                return null;
+            }
+            rec.end = reader.getLsn();
+            return rec;
+        } catch (EOFException e) {
+            return null;
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    private byte[] readSlotData(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > BufferPool.getPageSize()) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    /** Reads the part of the log that has been written to the file, by
+        LSN, through a window of the file.  Callers write out the log
+        buffer first and hold the LogFile lock while reading. */
+    private class LogReader {
+        private final ByteBuffer window = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+        private long windowLsn = 0; // LSN of the first byte in the window
+        final DataInputStream in = new DataInputStream(new InputStream() {
+                public int read() throws IOException {
+                    if (!fill()) {
+                        return -1;
+                    }
+                    return window.get() & 0xff;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!fill()) {
+                        return -1;
+                    }
+                    int n = Math.min(len, window.remaining());
+                    window.get(b, off, n);
+                    return n;
+                }
+            });
+
+        LogReader() {
+            window.limit(0);
+        }
+
+        /** Returns the LSN of the next byte to be read. */
+        long getLsn() {
+            return windowLsn + window.position();
+        }
+
+        /** Continue reading at the specified LSN. */
+        void seek(long lsn) throws IOException {
+            if (lsn >= windowLsn && lsn <= windowLsn + window.limit()) {
+                window.position((int) (lsn - windowLsn));
+            } else {
+                // center the window, as backward scans seek to earlier LSNs
+                load(Math.max(firstLsn, Math.min(lsn, Math.max(lsn - window.capacity() / 2,
+                                                                 writtenLsn - window.capacity()))));
+                window.position((int) (lsn - windowLsn));
+            }
+        }
+
+        // make sure there is something to read; false at the end of the log
+        private boolean fill() throws IOException {
+            if (!window.hasRemaining()) {
+                if (getLsn() >= writtenLsn) {
+                    return false;
+                }
+                load(getLsn());
+            }
+            return window.hasRemaining();
+        }
+
+        private void load(long lsn) throws IOException {
+            window.clear();
+            window.limit((int) Math.min(window.capacity(), Math.max(0, writtenLsn - lsn)));
+            while (window.hasRemaining()) {
+                long at = lsn + window.position();
+                FileChannel ch = segments.get(at / segmentSize);
+                if (ch == null) {
+                    break;
+                }
+                // stop at the end of the segment
+                int limit = window.limit();
+                window.limit((int) Math.min(limit, window.position() + segmentSize - at % segmentSize));
+                int n = ch.read(window, at % segmentSize);
+                window.limit(limit);
+                if (n < 0) {
+                    break;
+                }
+            }
+            window.flip();
+            windowLsn = lsn;
+        }
+    }
+
+    /** Force the whole log to disk. */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            end = endLsn();
+        }
+        forceTo(end);
+    }
+
+    /** Force the log to disk up to, but not including, the specified
+        LSN.  To make a record durable, pass the end of the record: the
+        value of {@link #getEndLsn} right after it was appended.  Returns
+        at once if that part of the log is already durable.  The LogFile
+        lock is not held while the file is being forced, so records can
+        be appended in the meantime.
+
+        @param endLsn The LSN after the last byte that must be durable
+    */
+    public void force(long endLsn) throws IOException {
+        forceTo(endLsn);
+    }
+
+    // make the log durable up to (not including) upToLsn; the log buffer
+    // may have been written out partway through a record, so upToLsn
+    // must be the end of the last record that has to be durable
+    private void forceTo(long upToLsn) throws IOException {
+        if (durableLsn >= upToLsn) {
+            return;
+        }
+        synchronized (this) {
+            if (writtenLsn < upToLsn) {
+                writeBuffer();
+            }
+            synchronized (pending) {
+                pending.addAll(unforced);
+                pendingLsn = Math.max(pendingLsn, writtenLsn);
+            }
+            unforced.clear();
+        }
+        synchronized (forceLock) {
+            // someone else may have forced the log while we waited
+            if (durableLsn >= upToLsn) {
+                return;
+            }
+            // every segment written up to target is pending now, including
+            // those taken by callers still waiting for the lock
+            List<FileChannel> chs;
+            long target;
+            synchronized (pending) {
+                chs = new ArrayList<FileChannel>(pending);
+                target = pendingLsn;
+                pending.clear();
+            }
+            for (int i = 0; i < chs.size(); i++) {
+                FileChannel ch = chs.get(i);
+                try {
+                    // a closed segment was truncated or already forced
+                    if (ch.isOpen()) {
+                        ch.force(true);
+                    }
+                } catch (IOException e) {
+                    synchronized (pending) {
+                        pending.addAll(chs.subList(i, chs.size()));
+                    }
+                    throw e;
+                }
+            }
+            if (target > durableLsn) {
+                durableLsn = target;
+            }
+        }
     }
 
 }
@@ -334,6 +334,11 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
+            // the first filter on a table is tested by its scan, on the
+            // pages, so that the rows it drops are never materialized
+            if (subplan instanceof SeqScan && ((SeqScan) subplan).getPredicate() == null) {
+                ((SeqScan) subplan).setPredicate(p);
+            }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * times of its last K accesses; the victim is the page whose K-th most recent
+ * access is oldest. Pages seen fewer than K times count as infinitely old and
+ * go first, oldest last access first, so a page touched once by a large scan
+ * is evicted before a page that is re-referenced.
+ * <p>
+ * The history of evicted pages is retained for a while so that a page that
+ * comes straight back is not treated as new.
+ *
+ * @Threadsafe
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+	/** Default K. LRU-2 already gives most of the benefit. */
+	public static final int DEFAULT_K = 2;
+
+	private final int k;
+	private final Map<PageId, long[]> resident;
+	private final LinkedHashMap<PageId, long[]> retained;
+	private final int maxRetained;
+	private long clock = 0;
+
+	public LruKPolicy(int numPages) {
+		this(numPages, DEFAULT_K);
+	}
+
+	/**
+	 * @param numPages
+	 *            number of pages in the BufferPool; also bounds how many
+	 *            histories of evicted pages are retained
+	 * @param k
+	 *            number of past accesses remembered per page
+	 */
+	public LruKPolicy(int numPages, int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("K must be at least 1");
+		}
+		this.k = k;
+		this.resident = new HashMap<PageId, long[]>();
+		this.retained = new LinkedHashMap<PageId, long[]>();
+		this.maxRetained = numPages;
+	}
+
+	/*
+	 * A history is an array of length k + 1. Slot 0 holds the number of
+	 * recorded accesses, slots 1..k hold access times with the most recent
+	 * first.
+	 */
+	public synchronized void recordAccess(PageId pid) {
+		long[] history = resident.get(pid);
+		if (history == null) {
+			history = retained.remove(pid);
+			if (history == null) {
+				history = new long[k + 1];
+			}
+			resident.put(pid, history);
+		}
+		System.arraycopy(history, 1, history, 2, k - 1);
+		history[1] = ++clock;
+		if (history[0] < k) {
+			history[0]++;
+		}
+	}
+
+	public synchronized PageId evict(EvictionFilter filter) {
+		PageId victim = null;
+		long[] victimHistory = null;
+		for (Map.Entry<PageId, long[]> e : resident.entrySet()) {
+			if (!filter.canEvict(e.getKey())) {
+				continue;
+			}
+			if (victim == null || older(e.getValue(), victimHistory)) {
+				victim = e.getKey();
+				victimHistory = e.getValue();
+			}
+		}
+		if (victim != null) {
+			resident.remove(victim);
+			retain(victim, victimHistory);
+		}
+		return victim;
+	}
+
+	public synchronized void remove(PageId pid) {
+		resident.remove(pid);
+	}
+
+	/** @return true if history a has a larger backward K-distance than b */
+	private boolean older(long[] a, long[] b) {
+		boolean aFull = a[0] == k;
+		boolean bFull = b[0] == k;
+		if (aFull != bFull) {
+			return !aFull;
+		}
+		if (aFull) {
+			return a[k] < b[k];
+		}
+		return a[1] < b[1];
+	}
+
+	private void retain(PageId pid, long[] history) {
+		retained.put(pid, history);
+		if (retained.size() > maxRetained) {
+			PageId eldest = retained.keySet().iterator().next();
+			retained.remove(eldest);
+		}
+	}
+}
@@ -3,18 +3,37 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields, optionally returning only the first tuples of the order.
+ * <p>
+ * The child's tuples are sorted in memory if they fit in the memory budget,
+ * which is the size of the BufferPool unless set. Otherwise, the sort is an
+ * external merge sort: sorted runs of tuples that fit in memory are written to
+ * spill files, and merged, as many at a time as the budget has pages for,
+ * until few enough runs are left to merge while the results are returned.
+ * With a limit whose tuples fit in memory, only the first tuples seen so far
+ * are kept, in a bounded heap, and nothing is written to disk.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** The limit of an OrderBy that returns all tuples. */
+    public static final int NO_LIMIT = -1;
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int limit;
+    private long memoryBudget = -1;
+
+    // the results, when they are sorted in memory
+    transient private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
+    transient private Iterator<Tuple> it;
+    // the runs left to merge, when the tuples did not fit in memory
+    transient private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    transient private Merge merge;
+    transient private int returned;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,28 +46,93 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorting on
+     * several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child) {
+        this(orderbyFields, ascs, child, NO_LIMIT);
+    }
+
+    /**
+     * Creates a new OrderBy node that returns the first tuples of the order of
+     * the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param limit
+     *            the number of tuples to return, or NO_LIMIT.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child, int limit) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length) {
+            throw new IllegalArgumentException("need a sort order for each of at least one field");
+        }
+        if (limit < 0 && limit != NO_LIMIT) {
+            throw new IllegalArgumentException("negative limit");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.limit = limit;
     }
-    
+
+    /**
+     * Set the number of bytes of tuples the sort holds in memory; the default
+     * is the size of the BufferPool. Takes effect when the operator is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = Spilling.checkMemoryBudget(bytes);
+    }
+
+    private long memoryBudget() {
+        if (memoryBudget > 0) {
+            return memoryBudget;
+        }
+        return Spilling.defaultMemoryBudget();
+    }
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
     }
-    
+
+    /** @return the fields the sort is applied to, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return the number of tuples returned, or NO_LIMIT */
+    public int getLimit() {
+        return limit;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,21 +140,169 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        Comparator<Tuple> order = new TupleComparator(orderByFields, ascs);
+        long budget = memoryBudget();
+        long tupleSize = td.getSize();
+        if (limit != NO_LIMIT && limit * tupleSize <= budget) {
+            topN(order);
+        } else {
+            sort(order, budget, tupleSize);
+        }
+        returned = 0;
         super.open();
     }
 
+    // keep the first limit tuples in a heap whose top is the last of them
+    private void topN(Comparator<Tuple> order) throws DbException, TransactionAbortedException {
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.max(1, limit),
+                Collections.reverseOrder(order));
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(t);
+            } else if (limit > 0 && order.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
+            }
+        }
+        childTups = new ArrayList<Tuple>(heap);
+        Collections.sort(childTups, order);
+        it = childTups.iterator();
+    }
+
+    // sort in memory, or write sorted runs and merge them
+    private void sort(Comparator<Tuple> order, long budget, long tupleSize)
+            throws DbException, TransactionAbortedException {
+        childTups = new ArrayList<Tuple>();
+        long size = 0;
+        while (child.hasNext()) {
+            if (size + tupleSize > budget && !childTups.isEmpty()) {
+                runs.add(writeRun(order));
+                size = 0;
+            }
+            childTups.add(child.next());
+            size += tupleSize;
+        }
+        Collections.sort(childTups, order);
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+            return;
+        }
+        runs.add(writeRun(order));
+
+        // every run being merged reads through a page of memory
+        int fanIn = (int) Math.max(2, budget / BufferPool.getPageSize() - 1);
+        while (runs.size() > fanIn) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile run = new SpillFile(td);
+                Merge m = new Merge(group, order);
+                Tuple t;
+                while ((t = m.next()) != null) {
+                    run.add(t);
+                }
+                m.close();
+                for (SpillFile f : group) {
+                    f.delete();
+                }
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        merge = new Merge(runs, order);
+    }
+
+    // sort the tuples in memory and write them to a new run
+    private SpillFile writeRun(Comparator<Tuple> order) throws DbException {
+        Collections.sort(childTups, order);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups) {
+            run.add(t);
+        }
+        childTups.clear();
+        return run;
+    }
+
+    /** A k-way merge of sorted runs. */
+    private static class Merge {
+        private final List<DbFileIterator> inputs = new ArrayList<DbFileIterator>();
+        private final PriorityQueue<Head> heads;
+
+        /** The next tuple of a run. */
+        private static class Head {
+            final Tuple t;
+            final DbFileIterator input;
+
+            Head(Tuple t, DbFileIterator input) {
+                this.t = t;
+                this.input = input;
+            }
+        }
+
+        Merge(List<SpillFile> runs, final Comparator<Tuple> order)
+                throws DbException, TransactionAbortedException {
+            heads = new PriorityQueue<Head>(runs.size(), new Comparator<Head>() {
+                public int compare(Head h1, Head h2) {
+                    return order.compare(h1.t, h2.t);
+                }
+            });
+            for (SpillFile run : runs) {
+                DbFileIterator input = run.iterator();
+                input.open();
+                inputs.add(input);
+                if (input.hasNext()) {
+                    heads.add(new Head(input.next(), input));
+                }
+            }
+        }
+
+        // the next tuple of the merged runs, or null
+        Tuple next() throws DbException, TransactionAbortedException {
+            Head h = heads.poll();
+            if (h == null) {
+                return null;
+            }
+            if (h.input.hasNext()) {
+                heads.add(new Head(h.input.next(), h.input));
+            }
+            return h.t;
+        }
+
+        void close() {
+            for (DbFileIterator input : inputs) {
+                input.close();
+            }
+        }
+    }
+
     public void close() {
         super.close();
+        child.close();
         it = null;
+        childTups = new ArrayList<Tuple>();
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        for (SpillFile run : runs) {
+            run.delete();
+        }
+        runs.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        returned = 0;
+        if (merge != null) {
+            merge.close();
+            merge = new Merge(runs, new TupleComparator(orderByFields, ascs));
+        } else {
+            it = childTups.iterator();
+        }
     }
 
     /**
@@ -82,10 +314,19 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+        if (limit != NO_LIMIT && returned >= limit) {
             return null;
+        }
+        Tuple t = null;
+        if (merge != null) {
+            t = merge.next();
+        } else if (it != null && it.hasNext()) {
+            t = it.next();
+        }
+        if (t != null) {
+            returned++;
+        }
+        return t;
     }
 
     @Override
@@ -101,23 +342,30 @@ public class OrderBy extends Operator {
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] ascs;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return ascs[i] ? 1 : -1;
+            else
+                return ascs[i] ? -1 : 1;
+        }
+        return 0;
     }
     
 }
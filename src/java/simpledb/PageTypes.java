@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageTypes is the registry of the kinds of pages and page ids that can be
+ * written to the log. Each kind is identified by a one-byte code, and a
+ * factory creates instances of it from their serialized form, so reading
+ * the log needs neither class names nor reflection.
+ * <p>
+ * The pages of SimpleDb are registered here; other page classes must be
+ * registered with {@link #register} before they are logged.
+ *
+ * @see LogFile#writePageData
+ * @see LogFile#writePageId
+ * @Threadsafe
+ */
+public class PageTypes {
+
+	/** Creates a page from its id and data. */
+	public interface PageFactory {
+		public Page create(PageId pid, byte[] data) throws IOException;
+	}
+
+	/** Creates a page id from the integers of {@link PageId#serialize()}. */
+	public interface PageIdFactory {
+		public PageId create(int[] data);
+	}
+
+	public static final byte HEAP_PAGE = 1;
+	public static final byte BTREE_ROOT_PTR_PAGE = 2;
+	public static final byte BTREE_INTERNAL_PAGE = 3;
+	public static final byte BTREE_LEAF_PAGE = 4;
+	public static final byte BTREE_HEADER_PAGE = 5;
+
+	public static final byte HEAP_PAGE_ID = 1;
+	public static final byte BTREE_PAGE_ID = 2;
+
+	// lookups are not synchronized, as they happen for every log record
+	private static final AtomicReferenceArray<PageFactory> pageFactories = new AtomicReferenceArray<PageFactory>(256);
+	private static final AtomicReferenceArray<PageIdFactory> idFactories = new AtomicReferenceArray<PageIdFactory>(256);
+	private static final Map<Class<?>, Byte> pageCodes = new ConcurrentHashMap<Class<?>, Byte>();
+	private static final Map<Class<?>, Byte> idCodes = new ConcurrentHashMap<Class<?>, Byte>();
+
+	static {
+		register(HEAP_PAGE, HeapPage.class, new PageFactory() {
+			public Page create(PageId pid, byte[] data) throws IOException {
+				return new HeapPage((HeapPageId) pid, data);
+			}
+		});
+		register(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class, new PageFactory() {
+			public Page create(PageId pid, byte[] data) throws IOException {
+				return new BTreeRootPtrPage((BTreePageId) pid, data);
+			}
+		});
+		register(BTREE_INTERNAL_PAGE, BTreeInternalPage.class, new PageFactory() {
+			public Page create(PageId pid, byte[] data) throws IOException {
+				return new BTreeInternalPage((BTreePageId) pid, data, keyField(pid));
+			}
+		});
+		register(BTREE_LEAF_PAGE, BTreeLeafPage.class, new PageFactory() {
+			public Page create(PageId pid, byte[] data) throws IOException {
+				return new BTreeLeafPage((BTreePageId) pid, data, keyField(pid));
+			}
+		});
+		register(BTREE_HEADER_PAGE, BTreeHeaderPage.class, new PageFactory() {
+			public Page create(PageId pid, byte[] data) throws IOException {
+				return new BTreeHeaderPage((BTreePageId) pid, data);
+			}
+		});
+		registerId(HEAP_PAGE_ID, HeapPageId.class, new PageIdFactory() {
+			public PageId create(int[] data) {
+				return new HeapPageId(data[0], data[1]);
+			}
+		});
+		registerId(BTREE_PAGE_ID, BTreePageId.class, new PageIdFactory() {
+			public PageId create(int[] data) {
+				return new BTreePageId(data[0], data[1], data[2]);
+			}
+		});
+	}
+
+	// B+ tree pages are created with the key field of their file
+	private static int keyField(PageId pid) {
+		return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+	}
+
+	/**
+	 * Register a page class.
+	 *
+	 * @param code
+	 *            the code of the class in the log; must not be 0 or taken
+	 * @param pageClass
+	 *            the exact class of the pages
+	 * @param factory
+	 *            creates pages of the class
+	 */
+	public static synchronized void register(byte code, Class<? extends Page> pageClass, PageFactory factory) {
+		if (code == 0 || pageFactories.get(code & 0xff) != null) {
+			throw new IllegalArgumentException("page type code " + code + " is taken");
+		}
+		pageFactories.set(code & 0xff, factory);
+		pageCodes.put(pageClass, code);
+	}
+
+	/**
+	 * Register a page id class.
+	 *
+	 * @param code
+	 *            the code of the class in the log; must not be 0 or taken
+	 * @param idClass
+	 *            the exact class of the page ids
+	 * @param factory
+	 *            creates page ids of the class
+	 */
+	public static synchronized void registerId(byte code, Class<? extends PageId> idClass, PageIdFactory factory) {
+		if (code == 0 || idFactories.get(code & 0xff) != null) {
+			throw new IllegalArgumentException("page id type code " + code + " is taken");
+		}
+		idFactories.set(code & 0xff, factory);
+		idCodes.put(idClass, code);
+	}
+
+	/**
+	 * @return the code of the page's class
+	 * @throws IllegalArgumentException
+	 *             if the class is not registered
+	 */
+	public static byte codeOf(Page p) {
+		Byte code = pageCodes.get(p.getClass());
+		if (code == null) {
+			throw new IllegalArgumentException("unregistered page class " + p.getClass().getName());
+		}
+		return code;
+	}
+
+	/**
+	 * @return the code of the page id's class
+	 * @throws IllegalArgumentException
+	 *             if the class is not registered
+	 */
+	public static byte codeOf(PageId pid) {
+		Byte code = idCodes.get(pid.getClass());
+		if (code == null) {
+			throw new IllegalArgumentException("unregistered page id class " + pid.getClass().getName());
+		}
+		return code;
+	}
+
+	/**
+	 * Create a page of the class with the specified code.
+	 *
+	 * @throws IOException
+	 *             if no class has the code
+	 */
+	public static Page createPage(byte code, PageId pid, byte[] data) throws IOException {
+		PageFactory factory = pageFactories.get(code & 0xff);
+		if (factory == null) {
+			throw new IOException("unknown page type code " + code);
+		}
+		return factory.create(pid, data);
+	}
+
+	/**
+	 * Create a page id of the class with the specified code.
+	 *
+	 * @throws IOException
+	 *             if no class has the code
+	 */
+	public static PageId createPageId(byte code, int[] data) throws IOException {
+		PageIdFactory factory = idFactories.get(code & 0xff);
+		if (factory == null) {
+			throw new IOException("unknown page id type code " + code);
+		}
+		return factory.create(data);
+	}
+}
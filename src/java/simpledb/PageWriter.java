@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageWriter is the background writer of a BufferPool in STEAL/NO-FORCE
+ * mode. Every few milliseconds, or sooner when the pool has had to write a
+ * dirty page to make room, it writes out the dirty pages that no running
+ * transaction is changing, so that a miss in getPage() finds a clean page
+ * to evict and does not wait for a write.
+ *
+ * @see BufferPool#writeBehind()
+ */
+class PageWriter extends Thread {
+
+	/** Default time between two rounds of writes. */
+	public static final long DEFAULT_INTERVAL_MS = 50;
+
+	private final BufferPool pool;
+	private final long intervalMs;
+	private boolean running = true; // protected by this
+	private boolean requested = false; // protected by this
+
+	PageWriter(BufferPool pool, long intervalMs) {
+		super("simpledb-page-writer");
+		setDaemon(true);
+		this.pool = pool;
+		this.intervalMs = intervalMs;
+	}
+
+	/** Start a round of writes now. */
+	synchronized void wake() {
+		requested = true;
+		notifyAll();
+	}
+
+	synchronized void shutdown() {
+		running = false;
+		notifyAll();
+	}
+
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				if (running && !requested) {
+					try {
+						wait(intervalMs);
+					} catch (InterruptedException e) {
+						// only shutdown() stops the writer
+					}
+				}
+				if (!running) {
+					return;
+				}
+				requested = false;
+			}
+			try {
+				pool.writeBehind();
+			} catch (IOException e) {
+				System.err.println("background page write failed");
+				e.printStackTrace();
+			}
+		}
+	}
+}
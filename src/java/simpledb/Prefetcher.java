@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetcher reads pages ahead of a scan on background I/O threads, so that
+ * the scan processes the tuples of one page while the next ones are being
+ * read. Prefetched pages are held here, outside of the buffers map, until the
+ * BufferPool misses on them in getPage(); no locks are taken when a page is
+ * prefetched, the scan still locks it when it asks for it. They count
+ * against the size of the pool: no more pages are held than it has free
+ * frames, so the pool and its prefetcher hold at most numPages pages.
+ * <p>
+ * A prefetched copy is only valid while the page on disk does not change, so
+ * the BufferPool calls {@link #invalidate} after it writes or discards a
+ * page. Dirty pages are always resident in the pool and are found there
+ * before the prefetcher is consulted.
+ * <p>
+ * Each prefetcher has its own I/O threads, which exit when idle and are
+ * stopped by {@link #close}.
+ *
+ * @see BufferPool#prefetch(PageId)
+ * @Threadsafe
+ */
+class Prefetcher {
+
+	/** Default number of pages read ahead of a scan. */
+	public static final int DEFAULT_WINDOW = 4;
+
+	private static final int IO_THREADS = 2;
+	// I/O threads exit after being idle this long
+	private static final long IDLE_MS = 1000;
+
+	private final BufferPool pool;
+	// insertion-ordered, so the oldest unclaimed read is dropped first
+	private final LinkedHashMap<PageId, Future<Page>> pending;
+	private ThreadPoolExecutor ioExecutor = null; // protected by pending
+	private boolean closed = false; // protected by pending
+	private volatile int window = DEFAULT_WINDOW;
+
+	/**
+	 * @param pool
+	 *            the BufferPool the pages are prefetched for, whose free
+	 *            frames bound the number of prefetched pages held at once
+	 */
+	Prefetcher(BufferPool pool) {
+		this.pool = pool;
+		this.pending = new LinkedHashMap<PageId, Future<Page>>();
+	}
+
+	// the I/O executor, started on first use; called with pending held
+	private ExecutorService getExecutor() {
+		if (ioExecutor == null) {
+			ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, IDLE_MS, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "simpledb-prefetch");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			ioExecutor.allowCoreThreadTimeOut(true);
+		}
+		return ioExecutor;
+	}
+
+	int getWindow() {
+		return window;
+	}
+
+	void setWindow(int window) {
+		this.window = window;
+	}
+
+	/**
+	 * Start reading the specified page in the background, unless it is
+	 * already being read.
+	 */
+	void prefetch(PageId pid) {
+		submit(pid, 0);
+	}
+
+	/**
+	 * Start reading the specified B+ tree leaf page and then, one after the
+	 * other, up to depth - 1 of its right siblings.
+	 */
+	void prefetchLeafChain(BTreePageId pid, int depth) {
+		submit(pid, depth - 1);
+	}
+
+	private void submit(final PageId pid, final int siblings) {
+		synchronized (pending) {
+			if (closed || window <= 0 || pending.containsKey(pid)) {
+				return;
+			}
+			int limit = pool.freeFrames();
+			Iterator<Future<Page>> it = pending.values().iterator();
+			while (pending.size() >= limit && it.hasNext()) {
+				it.next().cancel(false);
+				it.remove();
+			}
+			if (limit <= 0) {
+				return;
+			}
+			pending.put(pid, getExecutor().submit(new Callable<Page>() {
+				public Page call() {
+					Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+					if (siblings > 0 && p instanceof BTreeLeafPage) {
+						BTreePageId next = ((BTreeLeafPage) p).getRightSiblingId();
+						if (next != null) {
+							submit(next, siblings - 1);
+						}
+					}
+					return p;
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Claim a prefetched page, waiting for its read to finish if needed.
+	 *
+	 * @return the page, or null if it was not prefetched or the read failed
+	 */
+	Page take(PageId pid) {
+		Future<Page> f;
+		synchronized (pending) {
+			f = pending.remove(pid);
+		}
+		if (f == null) {
+			return null;
+		}
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			// fall back to a synchronous read, which reports the error
+			return null;
+		} catch (CancellationException e) {
+			// dropped by close()
+			return null;
+		}
+	}
+
+	/** Forget any prefetched copy of the specified page. */
+	void invalidate(PageId pid) {
+		synchronized (pending) {
+			Future<Page> f = pending.remove(pid);
+			if (f != null) {
+				f.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Drop all prefetched pages and stop the I/O threads. Nothing is
+	 * prefetched afterwards.
+	 */
+	void close() {
+		synchronized (pending) {
+			closed = true;
+			for (Future<Page> f : pending.values()) {
+				f.cancel(false);
+			}
+			pending.clear();
+			if (ioExecutor != null) {
+				ioExecutor.shutdown();
+				ioExecutor = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * RecoveryBenchmark measures how long recovery takes as the log grows, with
+ * redo on one thread and on all processors. For each log size, it runs
+ * transactions that insert tuples into a new table until that much log has
+ * been written, and then times LogFile.recover() as if the system had
+ * crashed, starting from a copy of the same log for every run. There is no
+ * checkpoint in the log, so recovery redoes all of it.
+ * <p>
+ * Usage: java -jar dist/simpledb.jar benchrecovery [log size in MB ...]
+ */
+public class RecoveryBenchmark {
+
+	private static final int COLUMNS = 2;
+	private static final int TUPLES_PER_TRANSACTION = 1000;
+	private static final int[] DEFAULT_SIZES_MB = { 1, 4, 16 };
+
+	public static void main(String[] args) throws DbException, TransactionAbortedException, IOException {
+		int[] sizes = DEFAULT_SIZES_MB;
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		int[] threads = processors > 1 ? new int[] { 1, processors } : new int[] { 1 };
+
+		System.out.println("log MB\tthreads\trecovery ms");
+		for (int size : sizes) {
+			File table = File.createTempFile("recoverybench", ".dat");
+			table.deleteOnExit();
+			File saved = Files.createTempDirectory("recoverybench").toFile();
+			writeLog(table, size * 1024L * 1024L);
+			copyLog(Database.getLogFile().logFile, saved);
+			for (int n : threads) {
+				// the new log must open the copied files
+				File logFile = Database.getLogFile().logFile;
+				copyLog(new File(saved, logFile.getName()), logFile.getAbsoluteFile().getParentFile());
+				Database.reset();
+				Utility.openHeapFile(COLUMNS, table);
+				Database.getLogFile().setRedoThreads(n);
+				long start = System.nanoTime();
+				Database.getLogFile().recover();
+				long ms = (System.nanoTime() - start) / 1000000;
+				System.out.println(size + "\t" + n + "\t" + ms);
+			}
+			for (File f : saved.listFiles()) {
+				f.delete();
+			}
+			saved.delete();
+			table.delete();
+		}
+		Database.getLogFile().shutdown();
+	}
+
+	// commit transactions of inserts until the log holds the specified
+	// number of bytes
+	private static void writeLog(File table, long bytes)
+			throws DbException, TransactionAbortedException, IOException {
+		Database.reset();
+		HeapFile hf = Utility.createEmptyHeapFile(table.getAbsolutePath(), COLUMNS);
+		LogFile log = Database.getLogFile();
+		int value = 0;
+		do {
+			Transaction t = new Transaction();
+			t.start();
+			for (int i = 0; i < TUPLES_PER_TRANSACTION; i++) {
+				Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(value++, COLUMNS));
+			}
+			t.commit();
+		} while (log.getEndLsn() < bytes);
+		log.force();
+	}
+
+	// copy the manifest and the segments of the log to the directory,
+	// replacing the ones there
+	private static void copyLog(File manifest, File dir) throws IOException {
+		String name = manifest.getName();
+		Pattern segment = Pattern.compile(Pattern.quote(name) + "\\.\\d{8}");
+		List<File> files = new ArrayList<File>();
+		for (File f : manifest.getAbsoluteFile().getParentFile().listFiles()) {
+			if (f.getName().equals(name) || segment.matcher(f.getName()).matches()) {
+				files.add(f);
+			}
+		}
+		for (File f : dir.listFiles()) {
+			if (segment.matcher(f.getName()).matches()) {
+				f.delete();
+			}
+		}
+		for (File f : files) {
+			Files.copy(f.toPath(), new File(dir, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool gives up when it needs
+ * room for a new one. The BufferPool reports every access to a resident page
+ * through {@link #recordAccess} and asks for a victim through {@link #evict}
+ * when it is full.
+ * <p>
+ * Implementations must keep recordAccess O(1), since it is called on every
+ * getPage(), and must be safe to call from concurrent transactions.
+ *
+ * @see BufferPool
+ * @see ClockPolicy
+ * @see LruKPolicy
+ * @see TwoQueuePolicy
+ */
+public interface ReplacementPolicy {
+
+	/**
+	 * Tells the policy which pages it is allowed to pick. The BufferPool uses
+	 * this to skip pages that must stay resident (e.g. dirty pages under
+	 * NO STEAL).
+	 */
+	public interface EvictionFilter {
+		public boolean canEvict(PageId pid);
+	}
+
+	/**
+	 * Record that the specified page was just accessed. If the page is not
+	 * yet tracked by this policy it becomes resident.
+	 *
+	 * @param pid
+	 *            the page that was accessed
+	 */
+	public void recordAccess(PageId pid);
+
+	/**
+	 * Choose a resident page to evict and stop tracking it.
+	 *
+	 * @param filter
+	 *            pages for which filter.canEvict() is false are never chosen
+	 * @return the page to evict, or null if no resident page may be evicted
+	 */
+	public PageId evict(EvictionFilter filter);
+
+	/**
+	 * Stop tracking the specified page, e.g. because it was discarded from
+	 * the BufferPool. Does nothing if the page is not tracked.
+	 */
+	public void remove(PageId pid);
+}
@@ -15,6 +15,8 @@ public class SeqScan implements OpIterator {
 	private int tableid;
 	private String alias;
 	private DbFileIterator it;
+	private Predicate pred = null;
+	private boolean open = false;
 	/**
 	 * Creates a sequential scan over the specified table as a part of the
 	 * specified transaction.
@@ -58,6 +60,20 @@ public class SeqScan implements OpIterator {
 		return alias;
 	}
 
+	/**
+	 * @return the id of the table the operator scans
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the transaction the operator scans the table for
+	 */
+	public TransactionId getTransactionId() {
+		return tid;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * 
@@ -81,9 +97,38 @@ public class SeqScan implements OpIterator {
 		this(tid, tableId, Database.getCatalog().getTableName(tableId));
 	}
 
+	/**
+	 * Only return the tuples that pass the specified predicate. A heap file
+	 * tests the tuples in place on its pages, so the ones that are rejected
+	 * are never materialized. Ignored once the scan is open.
+	 *
+	 * @param p
+	 *            the predicate, or null to return every tuple
+	 */
+	public void setPredicate(Predicate p) {
+		if (open) {
+			return;
+		}
+		pred = p;
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		if (p != null && f instanceof HeapFile) {
+			it = ((HeapFile) f).iterator(tid, p);
+		} else {
+			it = f.iterator(tid);
+		}
+	}
+
+	/**
+	 * @return the predicate set with {@link #setPredicate}, or null
+	 */
+	public Predicate getPredicate() {
+		return pred;
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		// some code goes here
 		it.open();
+		open = true;
 	}
 
 	/**
@@ -128,6 +173,7 @@ public class SeqScan implements OpIterator {
 	public void close() {
 		// some code goes here
 		it.close();
+		open = false;
 	}
 
 	public void rewind() throws DbException, NoSuchElementException,
@@ -90,6 +90,13 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("benchrecovery")) {
+            String[] newargs = new String[args.length-1];
+            for (int i = 1; i < args.length; ++i) {
+                newargs[i-1] = args[i];
+            }
+            RecoveryBenchmark.main(newargs);
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
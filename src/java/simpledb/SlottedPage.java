@@ -0,0 +1,47 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * SlottedPage is implemented by pages that store tuples in fixed size slots,
+ * so that a change to one tuple can be logged as the bytes of its slot
+ * instead of as an image of the whole page.
+ * <p>
+ * The page tracks which slots its own insertTuple and deleteTuple change.
+ * After each operation the BufferPool takes those changes and writes one log
+ * record per slot; recovery replays and undoes the records with
+ * {@link #setSlotData}.
+ *
+ * @see LogFile#logTupleWrite
+ * @see HeapPage
+ * @see BTreeLeafPage
+ */
+public interface SlottedPage extends Page {
+
+	/**
+	 * @return the serialized tuple in the specified slot, or null if the slot
+	 *         is empty
+	 */
+	public byte[] getSlotData(int slot);
+
+	/**
+	 * Store a serialized tuple in the specified slot, or empty the slot.
+	 * Changes made this way are not tracked.
+	 *
+	 * @param slot
+	 *            the slot to overwrite
+	 * @param data
+	 *            the serialized tuple, or null to empty the slot
+	 */
+	public void setSlotData(int slot, byte[] data);
+
+	/**
+	 * Return the slots changed since the last call, each mapped to its
+	 * contents before the first of those changes (null if it was empty), and
+	 * start tracking afresh.
+	 *
+	 * @return the changed slots, or null if something other than the slots
+	 *         changed too, in which case the page must be logged as a whole
+	 */
+	public Map<Integer, byte[]> takeSlotChanges();
+}
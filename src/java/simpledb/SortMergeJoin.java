@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator implements the relational join operation on
+ * children that are both sorted in ascending order of their join field, such
+ * as scans of B+ trees keyed on it, or OrderBy operators. It supports
+ * equality and the range predicates &lt;, &lt;=, &gt; and &gt;=.
+ * <p>
+ * Both children are read once. The matches of an outer (left) tuple are a run
+ * of consecutive inner (right) tuples, whose bounds only move forward as the
+ * outer join field grows, so only the inner tuples that later outer tuples
+ * can still match are kept in memory: the tuples of one key for an equality,
+ * and the tuples above the current outer key for &lt; and &lt;=. The inner
+ * tuples below the largest outer key so far are kept for &gt; and &gt;=.
+ * For the range predicates that can be the whole inner child, so the query
+ * optimizer only merge joins them on small inner tables (see
+ * {@link #fitsInMemory}).
+ */
+public class SortMergeJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+    // inner tuples no longer needed are dropped in batches of at least this
+    private static final int COMPACT_SIZE = 1024;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+
+    // the inner tuples read and still needed
+    transient private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    transient private Tuple t1 = null;
+    // the matches of t1 are the inner tuples in [pos, end) of the buffer, or
+    // from pos on if end is -1; no later outer tuple matches a tuple before
+    // start
+    transient private int start = 0;
+    transient private int pos = 0;
+    transient private int end = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join, sorted in
+     *            ascending order of the join field
+     * @param child2
+     *            Iterator for the right(inner) relation to join, sorted in
+     *            ascending order of the join field
+     * @throws IllegalArgumentException
+     *             if the predicate's operator is not supported
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        super(p, child1, child2);
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if children can be merge joined on the operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * @return true if the plan returns its tuples in ascending order of the
+     *         specified field: it scans a B+ tree keyed on the field, sorts on
+     *         it, or filters or merge joins such a plan
+     */
+    public static boolean isSorted(OpIterator plan, int field) {
+        if (plan instanceof Filter) {
+            return isSorted(((Filter) plan).getChildren()[0], field);
+        }
+        if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            return field == j.getJoinPredicate().getField1() && isSorted(j.child1, field);
+        }
+        DbFile f = scannedFile(plan);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * @return true if merge joining on the operator keeps at most half the
+     *         BufferPool's worth of inner tuples in memory: always for an
+     *         equality, which keeps the tuples of one key, and for the range
+     *         predicates only if the inner plan scans (and possibly filters)
+     *         a table no larger than that, as they can keep all of it
+     */
+    public static boolean fitsInMemory(Predicate.Op op, OpIterator inner) {
+        if (op == Predicate.Op.EQUALS) {
+            return true;
+        }
+        while (inner instanceof Filter) {
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        DbFile f = scannedFile(inner);
+        return f != null && fitsInMemory(op, f);
+    }
+
+    /**
+     * @return true if merge joining on the operator with the specified inner
+     *         table keeps at most half the BufferPool's worth of inner tuples
+     *         in memory
+     * @see #fitsInMemory(Predicate.Op, OpIterator)
+     */
+    public static boolean fitsInMemory(Predicate.Op op, DbFile inner) {
+        if (op == Predicate.Op.EQUALS) {
+            return true;
+        }
+        int pages;
+        if (inner instanceof HeapFile) {
+            pages = ((HeapFile) inner).numPages();
+        } else if (inner instanceof BTreeFile) {
+            pages = ((BTreeFile) inner).numPages();
+        } else {
+            return false;
+        }
+        return pages <= Math.max(1, Database.getBufferPool().getNumPages() / 2);
+    }
+
+    // the file the plan scans, or null if it is not a scan
+    private static DbFile scannedFile(OpIterator plan) {
+        int tableId;
+        if (plan instanceof SeqScan) {
+            tableId = ((SeqScan) plan).getTableId();
+        } else if (plan instanceof BTreeScan) {
+            tableId = Database.getCatalog().getTableId(((BTreeScan) plan).getTableName());
+        } else {
+            return null;
+        }
+        return Database.getCatalog().getDatabaseFile(tableId);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        reset();
+    }
+
+    private void reset() {
+        buffer.clear();
+        t1 = null;
+        start = 0;
+        pos = 0;
+        end = 0;
+    }
+
+    // the inner tuple at index i of the buffer, reading it if needed; null
+    // past the end of the inner child
+    private Tuple inner(int i) throws DbException, TransactionAbortedException {
+        if (i == buffer.size()) {
+            if (!child2.hasNext()) {
+                return null;
+            }
+            buffer.add(child2.next());
+        }
+        return buffer.get(i);
+    }
+
+    // move start past the inner tuples whose join field is op key
+    private void skip(Predicate.Op op, Field key) throws DbException, TransactionAbortedException {
+        Tuple t2;
+        while ((t2 = inner(start)) != null && t2.getField(pred.getField2()).compare(op, key)) {
+            start++;
+        }
+        if (start >= COMPACT_SIZE && start * 2 >= buffer.size()) {
+            buffer.subList(0, start).clear();
+            start = 0;
+        }
+    }
+
+    // the first index from i on of an inner tuple whose join field is not
+    // op key
+    private int scan(int i, Predicate.Op op, Field key) throws DbException, TransactionAbortedException {
+        Tuple t2;
+        while ((t2 = inner(i)) != null && t2.getField(pred.getField2()).compare(op, key)) {
+            i++;
+        }
+        return i;
+    }
+
+    // find the run of inner tuples that match the outer key
+    private void seek(Field key) throws DbException, TransactionAbortedException {
+        switch (pred.getOperator()) {
+        case EQUALS:
+            skip(Predicate.Op.LESS_THAN, key);
+            end = scan(start, Predicate.Op.EQUALS, key);
+            break;
+        case LESS_THAN:
+            skip(Predicate.Op.LESS_THAN_OR_EQ, key);
+            end = -1;
+            break;
+        case LESS_THAN_OR_EQ:
+            skip(Predicate.Op.LESS_THAN, key);
+            end = -1;
+            break;
+        case GREATER_THAN:
+            end = scan(end, Predicate.Op.LESS_THAN, key);
+            break;
+        case GREATER_THAN_OR_EQ:
+            end = scan(end, Predicate.Op.LESS_THAN_OR_EQ, key);
+            break;
+        default:
+            throw new IllegalStateException("cannot merge join on " + pred.getOperator());
+        }
+        pos = start;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The results are returned in the order of the outer tuples,
+     * and for each outer tuple in the order of the inner tuples.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && (end < 0 || pos < end)) {
+                Tuple t2 = inner(pos);
+                if (t2 != null) {
+                    pos++;
+                    return joinTuple(t1, t2);
+                }
+            }
+            if (!child1.hasNext()) {
+                t1 = null;
+                return null;
+            }
+            t1 = child1.next();
+            seek(t1.getField(pred.getField1()));
+        }
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        super.setChildren(children);
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * SpillFile is a temporary file of tuples, for operators that have to hold
+ * more tuples than fit in memory. Tuples are appended to it, and once it is
+ * complete, they can be read back in the order they were added, as often as
+ * needed. The file is removed by delete(), or when the JVM exits.
+ */
+public class SpillFile {
+
+	private final TupleDesc td;
+	private final File file;
+	// reads and writes go through a buffer of one page
+	private final int bufferSize = BufferPool.getPageSize();
+	private DataOutputStream out;
+	private int size = 0;
+
+	/**
+	 * Create an empty spill file for tuples of the specified schema.
+	 */
+	public SpillFile(TupleDesc td) throws DbException {
+		this.td = td;
+		try {
+			file = File.createTempFile("simpledb", ".spill");
+			file.deleteOnExit();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize));
+		} catch (IOException e) {
+			throw dbException(e);
+		}
+	}
+
+	static DbException dbException(IOException e) {
+		DbException dbe = new DbException("spill file: " + e.getMessage());
+		dbe.initCause(e);
+		return dbe;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/** @return the number of tuples in the file */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Append a tuple to the file.
+	 *
+	 * @throws IllegalStateException
+	 *             if the file has been read from
+	 */
+	public void add(Tuple t) throws DbException {
+		if (out == null) {
+			throw new IllegalStateException("spill file is complete");
+		}
+		try {
+			for (int i = 0; i < td.numFields(); i++) {
+				t.getField(i).serialize(out);
+			}
+		} catch (IOException e) {
+			throw dbException(e);
+		}
+		size++;
+	}
+
+	/**
+	 * @return an iterator over the tuples of the file; no more tuples can be
+	 *         added once it is opened
+	 */
+	public DbFileIterator iterator() {
+		return new AbstractDbFileIterator() {
+			private DataInputStream in = null;
+			private int read = 0;
+
+			public void open() throws DbException {
+				finish();
+				try {
+					in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+					read = 0;
+				} catch (IOException e) {
+					throw dbException(e);
+				}
+			}
+
+			protected Tuple readNext() throws DbException {
+				if (in == null || read == size) {
+					return null;
+				}
+				Tuple t = new Tuple(td);
+				try {
+					for (int i = 0; i < td.numFields(); i++) {
+						t.setField(i, td.getFieldType(i).parse(in));
+					}
+				} catch (ParseException e) {
+					throw new DbException("corrupt spill file " + file);
+				}
+				read++;
+				return t;
+			}
+
+			public void rewind() throws DbException {
+				close();
+				open();
+			}
+
+			public void close() {
+				super.close();
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						// nothing was written through it
+					}
+					in = null;
+				}
+			}
+		};
+	}
+
+	// write out the tuples added so far
+	private void finish() throws DbException {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				throw dbException(e);
+			}
+			out = null;
+		}
+	}
+
+	/** Remove the file. */
+	public void delete() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the file goes anyway
+			}
+			out = null;
+		}
+		file.delete();
+	}
+}
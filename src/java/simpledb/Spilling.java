@@ -0,0 +1,59 @@
+package simpledb;
+
+/**
+ * Spilling holds what the operators that write their input to
+ * {@link SpillFile}s when it outgrows memory have in common: the default
+ * memory budget, the number of partitions an input is split into, and the
+ * hash functions it is split with.
+ */
+final class Spilling {
+
+	/** The most partitions an input is split into at a time. */
+	static final int MAX_PARTITIONS = 64;
+
+	private Spilling() {
+	}
+
+	/** @return the default memory budget in bytes: the size of the BufferPool */
+	static long defaultMemoryBudget() {
+		return (long) Database.getBufferPool().getNumPages() * BufferPool.getPageSize();
+	}
+
+	/**
+	 * @return bytes, if it is a valid memory budget
+	 * @throws IllegalArgumentException
+	 *             if bytes is not positive
+	 */
+	static long checkMemoryBudget(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("memory budget must be positive");
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of partitions to split an input into: one per page
+	 *         of the BufferPool, from 2 to MAX_PARTITIONS
+	 */
+	static int numPartitions() {
+		return Math.max(2, Math.min(MAX_PARTITIONS, Database.getBufferPool().getNumPages()));
+	}
+
+	/** @return h with its bits mixed, so that its low bits are well spread */
+	static int mix(int h) {
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * @return the partition of a hash code at the specified level of
+	 *         partitioning; every level splits differently, so that a
+	 *         partition can be split again
+	 */
+	static int partition(int hash, int level, int partitions) {
+		return (mix(hash ^ (level * 0x9e3779b9)) & Integer.MAX_VALUE) % partitions;
+	}
+}
@@ -1,6 +1,5 @@
 package simpledb;
 
-import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -12,9 +11,7 @@ public class StringAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private Map<Field, List<String>> groups;
-    private Map<Field, Tuple> results;
-    private TupleDesc td;
+    private GroupTable groups;
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
@@ -30,15 +27,10 @@ public class StringAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        groups = new HashMap<Field, List<String>>();
-        results = new HashMap<Field, Tuple>();
-        Type[] types;
-        if(gbfield == Aggregator.NO_GROUPING){
-            types = new Type[]{Type.INT_TYPE};
-        }else{
-            types = new Type[]{gbfieldtype, Type.INT_TYPE};
+        if (what != Op.COUNT) {
+            throw new IllegalArgumentException("only COUNT is supported on strings");
         }
-        td = new TupleDesc(types);
+        groups = new GroupTable(gbfield == Aggregator.NO_GROUPING ? null : gbfieldtype, what);
     }
 
     /**
@@ -50,27 +42,16 @@ public class StringAggregator implements Aggregator {
         Field key = null;
         if(gbfield != Aggregator.NO_GROUPING){
             key = tup.getField(gbfield);
-        }else{
-            key = new StringField("-1", 2);
         }
-        String val = tup.getField(afield).toString();
-        if(groups.get(key) == null){
-            groups.put(key, new LinkedList<String>());
-        }
-        groups.get(key).add(val);
-        Iterator<String> iter = groups.get(key).iterator();
-        Integer aggregateVal = doAggregate(what.toString(), iter);
-        Tuple t = new Tuple(td);
-        if(gbfield == Aggregator.NO_GROUPING){
-            Field f1 = new IntField(aggregateVal);
-            t.setField(0, f1);
-        }else{
-            Field f1 = tup.getField(gbfield);
-            Field f2 = new IntField(aggregateVal);
-            t.setField(0, f1);
-            t.setField(1, f2);
-        }
-        results.put(key, t);
+        groups.add(key, 0);
+    }
+
+    /**
+     * Set the number of bytes of groups kept in memory before they are
+     * spilled to disk; the default is the size of the BufferPool.
+     */
+    public void setMemoryBudget(long bytes) {
+        groups.setMemoryBudget(bytes);
     }
 
     /**
@@ -84,18 +65,11 @@ public class StringAggregator implements Aggregator {
     public OpIterator iterator() {
         // some code goes here
         //throw new UnsupportedOperationException("please implement me for lab2");
-        return new TupleIterator(td, results.values());
+        return groups.iterator();
     }
 
-    private Integer doAggregate(String type, Iterator<String> it){
-        if(type.equals("count")){
-            Integer cnt = 0;
-            while (it.hasNext()){
-                it.next();
-                cnt += 1;
-            }
-            return cnt;
-        }
-        throw new UnsupportedOperationException("operator illegal!");
+    // see Aggregator.java for javadocs
+    public void close() {
+        groups.close();
     }
 }
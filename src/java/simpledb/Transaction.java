@@ -12,7 +12,16 @@ public class Transaction {
     volatile boolean started = false;
 
     public Transaction() {
-        tid = new TransactionId();
+        this(false);
+    }
+
+    /**
+     * @param readOnly
+     *            whether the transaction only reads
+     * @see TransactionId#TransactionId(boolean)
+     */
+    public Transaction(boolean readOnly) {
+        tid = new TransactionId(readOnly);
     }
 
     /** Start the transaction running */
@@ -47,8 +56,11 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //write all the dirty pages for this transaction out,
+                // unless recovery is left to redo them from the log
+                if (!Database.getBufferPool().isStealNoForce()) {
+                    Database.getBufferPool().flushPages(tid);
+                }
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -12,15 +12,45 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    private final boolean readOnly;
 
     public TransactionId() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly
+     *            whether the transaction only reads; a read-only transaction
+     *            may not get pages for writing, and its scans of memory
+     *            mapped files read straight from the mapping
+     */
+    public TransactionId(boolean readOnly) {
         myid = counter.getAndIncrement();
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Recreate the id of a transaction found in the log. Ids handed out
+     * afterwards are larger than this one.
+     */
+    TransactionId(long id) {
+        myid = id;
+        readOnly = false;
+        long next;
+        while ((next = counter.get()) <= id && !counter.compareAndSet(next, id + 1)) {
+            // retry
+        }
     }
 
     public long getId() {
         return myid;
     }
 
+    /** Returns true if this is the id of a read-only transaction. */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
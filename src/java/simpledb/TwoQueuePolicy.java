@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). Pages seen for the first time
+ * enter a FIFO queue, A1in. Pages evicted from A1in leave their id behind in a
+ * ghost queue, A1out. A page referenced again while its id is in A1out is
+ * promoted to the LRU queue Am. A page read once by a scan therefore only ever
+ * lives in A1in and never pushes hot pages out of Am.
+ *
+ * @Threadsafe
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+	private final LinkedHashSet<PageId> a1in;
+	private final LinkedHashSet<PageId> a1out;
+	// access-ordered, so the first entry is the least recently used
+	private final LinkedHashMap<PageId, Boolean> am;
+	private final int kin;
+	private final int kout;
+
+	/**
+	 * Creates a 2Q policy with the tuning suggested in the paper: A1in holds a
+	 * quarter of the pool, A1out remembers half a pool's worth of ids.
+	 */
+	public TwoQueuePolicy(int numPages) {
+		this(numPages, Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+	}
+
+	/**
+	 * @param numPages
+	 *            number of pages in the BufferPool
+	 * @param kin
+	 *            target size of A1in
+	 * @param kout
+	 *            maximum number of ids remembered in A1out
+	 */
+	public TwoQueuePolicy(int numPages, int kin, int kout) {
+		this.a1in = new LinkedHashSet<PageId>();
+		this.a1out = new LinkedHashSet<PageId>();
+		this.am = new LinkedHashMap<PageId, Boolean>(numPages, 0.75f, true);
+		this.kin = kin;
+		this.kout = kout;
+	}
+
+	public synchronized void recordAccess(PageId pid) {
+		if (am.containsKey(pid)) {
+			am.get(pid); // move to the MRU end
+		} else if (a1in.contains(pid)) {
+			// correlated references while in A1in do not promote
+		} else if (a1out.remove(pid)) {
+			am.put(pid, Boolean.TRUE);
+		} else {
+			a1in.add(pid);
+		}
+	}
+
+	public synchronized PageId evict(EvictionFilter filter) {
+		PageId victim = null;
+		if (a1in.size() > kin || am.isEmpty()) {
+			victim = evictFromA1in(filter);
+			if (victim == null) {
+				victim = first(am.keySet().iterator(), filter);
+			}
+		} else {
+			victim = first(am.keySet().iterator(), filter);
+			if (victim == null) {
+				victim = evictFromA1in(filter);
+			}
+		}
+		return victim;
+	}
+
+	public synchronized void remove(PageId pid) {
+		a1in.remove(pid);
+		am.remove(pid);
+	}
+
+	private PageId evictFromA1in(EvictionFilter filter) {
+		PageId victim = first(a1in.iterator(), filter);
+		if (victim != null) {
+			a1out.add(victim);
+			if (a1out.size() > kout) {
+				Iterator<PageId> it = a1out.iterator();
+				it.next();
+				it.remove();
+			}
+		}
+		return victim;
+	}
+
+	/** Removes and returns the first evictable page of a queue. */
+	private PageId first(Iterator<PageId> it, EvictionFilter filter) {
+		while (it.hasNext()) {
+			PageId pid = it.next();
+			if (filter.canEvict(pid)) {
+				it.remove();
+				return pid;
+			}
+		}
+		return null;
+	}
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer data, int offset) throws ParseException {
+            return new IntField(readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +48,22 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer data, int offset) throws ParseException {
+            int strLen = readInt(data, offset);
+            if (strLen < 0 || strLen > STRING_LEN || offset + 4 + strLen > data.limit()) {
+                throw new ParseException("couldn't parse", offset);
+            }
+            if (data.hasArray()) {
+                return new StringField(new String(data.array(), data.arrayOffset() + offset + 4, strLen), STRING_LEN);
+            }
+            byte bs[] = new byte[strLen];
+            ByteBuffer view = data.duplicate();
+            view.position(offset + 4);
+            view.get(bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +82,21 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified position of a buffer, in the format written by
+   *   Field.serialize. The buffer's position is not used or changed.
+   * @param data The bytes to read from
+   * @param offset The position of the field in data
+   * @throws ParseException if the data is not of the appropriate type.
+   */
+    public abstract Field parse(ByteBuffer data, int offset) throws ParseException;
+
+    private static int readInt(ByteBuffer data, int offset) throws ParseException {
+        if (offset < 0 || offset + 4 > data.limit()) {
+            throw new ParseException("couldn't parse", offset);
+        }
+        return data.getInt(offset);
+    }
+
 }
@@ -135,6 +135,69 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Without STEAL, a pool full of dirty pages refuses to read another page
+     * rather than growing past its size.
+     */
+    @Test public void evictWithAllPagesDirty() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        for (int i = 0; i < 2; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("a page was read into a pool of dirty pages");
+        } catch (DbException e) {
+            // expected
+        }
+        assertNull(bp.getBufferedPage(new HeapPageId(hf.getId(), 2)));
+    }
+
+    /**
+     * Concurrent misses never leave more pages resident than the pool
+     * holds.
+     */
+    @Test public void concurrentMissesStayWithinPool() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(4);
+        bp.setPrefetchWindow(0);
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 16, null, null);
+        final int pages = hf.numPages();
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int first = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    TransactionId t = new TransactionId();
+                    try {
+                        for (int n = 0; n < 200; n++) {
+                            bp.getPage(t, new HeapPageId(hf.getId(), (first + n) % pages),
+                                    Permissions.READ_ONLY);
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    } finally {
+                        bp.transactionComplete(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(error[0]);
+        int resident = 0;
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            if (bp.getBufferedPage(new HeapPageId(hf.getId(), pgNo)) != null) {
+                resident++;
+            }
+        }
+        assertTrue(resident <= 4);
+    }
+
     /**
      * JUnit suite target
      */
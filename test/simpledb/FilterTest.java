@@ -2,6 +2,7 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -9,6 +10,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class FilterTest extends SimpleDbTestBase {
 
@@ -120,6 +122,39 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * A Filter leaves its child scan alone, and relies on a scan that was
+   * given its predicate; a different child is filtered again.
+   */
+  @Test public void scanPredicate() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, 10, null, null);
+    TransactionId tid = new TransactionId();
+    Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(5));
+    SeqScan plain = new SeqScan(tid, hf.getId());
+    Filter op = new Filter(pred, plain);
+    assertNull(plain.getPredicate());
+
+    SeqScan pushed = new SeqScan(tid, hf.getId());
+    pushed.setPredicate(pred);
+    op.setChildren(new OpIterator[] { pushed });
+    int count = 0;
+    op.open();
+    while (op.hasNext()) {
+      assertTrue(pred.filter(op.next()));
+      count++;
+    }
+    op.close();
+
+    op.setChildren(new OpIterator[] { plain });
+    op.open();
+    while (op.hasNext()) {
+      assertTrue(pred.filter(op.next()));
+      count--;
+    }
+    op.close();
+    assertEquals(0, count);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,135 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+  }
+
+  // width 2 tuples {key(i), i} for i in [0, count)
+  private static OpIterator tuples(int count, int keys) {
+    int[] data = new int[2 * count];
+    for (int i = 0; i < count; i++) {
+      data[2 * i] = i % keys;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  // count the results of a join, checking that their keys match
+  private static int countMatches(OpIterator join) throws Exception {
+    int count = 0;
+    join.open();
+    while (join.hasNext()) {
+      Tuple t = join.next();
+      assertEquals(t.getField(0), t.getField(2));
+      count++;
+    }
+    join.close();
+    return count;
+  }
+
+  /**
+   * Unit test for HashEquiJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() on inputs that fit in memory
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * An outer child larger than the BufferPool is partitioned to disk, and
+   * every match is still found exactly once.
+   */
+  @Test public void partitioned() throws Exception {
+    // room for 1024 tuples of two integers
+    Database.resetBufferPool(2);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    // 20000 outer tuples on 5000 keys, inner tuples on keys 0 to 9999
+    HashEquiJoin op = new HashEquiJoin(pred, tuples(20000, 5000), tuples(10000, 10000));
+    assertEquals(20000, countMatches(op));
+    // and again after a rewind
+    op.open();
+    op.next();
+    op.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    op.close();
+    assertEquals(20000, count);
+  }
+
+  /**
+   * Outer tuples that all have the same key cannot be partitioned, and are
+   * joined in chunks.
+   */
+  @Test public void skewed() throws Exception {
+    Database.resetBufferPool(2);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, tuples(3000, 1), tuples(5, 2));
+    // inner tuples 0, 2 and 4 have key 0
+    assertEquals(3 * 3000, countMatches(op));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
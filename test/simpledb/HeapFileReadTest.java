@@ -121,6 +121,40 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A read-only heap file can be read, and closing it only releases its
+     * file handles.
+     */
+    @Test
+    public void readOnlyFile() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.close();
+        assertTrue(hf.getFile().setWritable(false));
+        try {
+            HeapFile readOnly = new HeapFile(hf.getFile(), td);
+            HeapPage page = (HeapPage) readOnly.readPage(pid);
+            assertEquals(484, page.getNumEmptySlots());
+            readOnly.close();
+        } finally {
+            hf.getFile().setWritable(true);
+        }
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Reading a file that does not exist does not create it.
+     */
+    @Test
+    public void readMissingFile() throws Exception {
+        java.io.File missing = new java.io.File(hf.getFile().getPath() + ".missing");
+        HeapFile empty = new HeapFile(missing, td);
+        Database.getCatalog().addTable(empty);
+        assertEquals(0, empty.numPages());
+        empty.readPage(new HeapPageId(empty.getId(), 0));
+        empty.close();
+        assertFalse(missing.exists());
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.io.File;
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -41,6 +44,78 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.writePages(): adjacent and non-adjacent pages
+     * passed out of order all land at their own offsets.
+     */
+    @Test public void writePages() throws Exception {
+        int[] pageNos = new int[] { 2, 0, 5, 1 };
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int pgNo : pageNos) {
+            HeapPage p = new HeapPage(new HeapPageId(empty.getId(), pgNo),
+                    HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            pages.add(p);
+        }
+        empty.writePages(pages);
+        assertEquals(6, empty.numPages());
+
+        for (Page expected : pages) {
+            Page actual = empty.readPage(expected.getId());
+            assertArrayEquals(expected.getPageData(), actual.getPageData());
+        }
+        // the gap between runs is left as zeroes, i.e. an empty page
+        HeapPage gap = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 3));
+        assertFalse(gap.iterator().hasNext());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() with a free space map: once the
+     * map knows where the room is, an insert only locks that page.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        for (int i = 0; i < 504 * 3; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // free a slot on the last page
+        tid = new TransactionId();
+        HeapPageId last = new HeapPageId(empty.getId(), 2);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, last, Permissions.READ_ONLY);
+        Database.getBufferPool().deleteTuple(tid, page.iterator().next());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(-1, 2));
+        assertEquals(3, empty.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, last));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+    }
+
+    /**
+     * The free space map is saved when the file is closed, not with every
+     * page write, and a file that is never inserted into gets no map file.
+     */
+    @Test public void freeSpaceMapSavedOnClose() throws Exception {
+        File mapFile = new File(empty.getFile().getPath() + FreeSpaceMap.SUFFIX);
+        ArrayList<Page> pages = new ArrayList<Page>();
+        pages.add(new HeapPage(new HeapPageId(empty.getId(), 0), HeapPage.createEmptyPageData()));
+        empty.writePages(pages);
+        empty.readPage(pages.get(0).getId());
+        empty.close();
+        assertFalse(mapFile.exists());
+
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertFalse(mapFile.exists());
+        empty.close();
+        assertTrue(mapFile.exists());
+        mapFile.delete();
+    }
+
     /**
      * JUnit suite target
      */
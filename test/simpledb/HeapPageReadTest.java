@@ -99,6 +99,30 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate): only the tuples that pass
+     * are returned, each as a tuple of its own.
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        IntField bound = new IntField(EXAMPLE_VALUES[10][0]);
+        Iterator<Tuple> it = page.iterator(new Predicate(0, Predicate.Op.GREATER_THAN, bound));
+
+        List<Tuple> passed = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            passed.add(it.next());
+        }
+        int row = 0;
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] > bound.getValue()) {
+                Tuple tup = passed.get(row++);
+                assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+            }
+        }
+        assertEquals(row, passed.size());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -1,11 +1,14 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -126,6 +129,68 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples read from a page stay valid after their slot is reused, and
+     * getPageData() of a modified page reads back the same tuples.
+     */
+    @Test public void tuplesSurviveModification() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        int[] values = new int[] { ((IntField) first.getField(0)).getValue(),
+                ((IntField) first.getField(1)).getValue() };
+
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(-7, 2));
+        assertEquals(values[0], ((IntField) first.getField(0)).getValue());
+        assertEquals(values[1], ((IntField) first.getField(1)).getValue());
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = copy.iterator();
+        while (expected.hasNext()) {
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        }
+        assertEquals(false, actual.hasNext());
+    }
+
+    /**
+     * Unit test for HeapPage.takeSlotChanges() and setSlotData(): the slot
+     * changes of an insert and a delete redo and undo to the same pages.
+     */
+    @Test public void slotChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        Tuple first = page.iterator().next();
+        int deleted = first.getRecordId().getTupleNumber();
+        byte[] deletedData = page.getSlotData(deleted);
+        page.deleteTuple(first);
+        Tuple added = Utility.getHeapTuple(-7, 2);
+        page.insertTuple(added);
+        int inserted = added.getRecordId().getTupleNumber();
+        byte[] after = page.getPageData();
+
+        Map<Integer, byte[]> changes = page.takeSlotChanges();
+        assertTrue(page.takeSlotChanges().isEmpty());
+        // the insert may reuse the deleted slot
+        assertTrue(changes.containsKey(deleted));
+        assertTrue(Arrays.equals(deletedData, changes.get(deleted)));
+
+        // redo on the old page
+        HeapPage redo = new HeapPage(pid, before);
+        for (Integer slot : changes.keySet()) {
+            redo.setSlotData(slot, page.getSlotData(slot));
+        }
+        assertArrayEquals(after, redo.getPageData());
+        assertTrue(redo.takeSlotChanges().isEmpty());
+
+        // undo on the new one
+        for (Map.Entry<Integer, byte[]> e : changes.entrySet()) {
+            page.setSlotData(e.getKey(), e.getValue());
+        }
+        assertArrayEquals(before, page.getPageData());
+        assertEquals(inserted == deleted, page.isSlotUsed(inserted));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,137 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  private static final int[] OUTER = { 1, 10,
+                                       2, 20,
+                                       4, 40,
+                                       6, 60 };
+  private static final int[] INNER = { 0, 100,
+                                       2, 120,
+                                       2, 121,
+                                       3, 130,
+                                       6, 160 };
+
+  private TestUtil.ListIndex index;
+  private TransactionId tid;
+
+  @Before public void createIndex() throws Exception {
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    OpIterator inner = TestUtil.createTupleList(2, INNER);
+    while (inner.hasNext()) {
+      tuples.add(inner.next());
+    }
+    File f = File.createTempFile("inljtest", ".dat");
+    f.deleteOnExit();
+    index = new TestUtil.ListIndex(f, Utility.getTupleDesc(2), tuples);
+    Database.getCatalog().addTable(index, "inner");
+    tid = new TransactionId();
+  }
+
+  private static List<String> results(OpIterator op) throws Exception {
+    List<String> results = new ArrayList<String>();
+    op.open();
+    while (op.hasNext()) {
+      results.add(op.next().toString());
+    }
+    op.close();
+    Collections.sort(results);
+    return results;
+  }
+
+  // the index join returns what the nested loops join returns, probing the
+  // index once per outer tuple with the reversed operator
+  private void checkJoin(Predicate.Op op, Predicate.Op probeOp) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    List<String> expected = results(new Join(pred,
+        TestUtil.createTupleList(2, OUTER), TestUtil.createTupleList(2, INNER)));
+    List<String> actual = results(new IndexNestedLoopJoin(pred,
+        TestUtil.createTupleList(2, OUTER), new SeqScan(tid, index.getId())));
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, actual);
+    assertEquals(OUTER.length / 2, index.probes.size());
+    for (IndexPredicate ipred : index.probes) {
+      assertEquals(probeOp, ipred.getOp());
+    }
+  }
+
+  @Test public void eqJoin() throws Exception {
+    checkJoin(Predicate.Op.EQUALS, Predicate.Op.EQUALS);
+  }
+
+  @Test public void ltJoin() throws Exception {
+    checkJoin(Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN);
+  }
+
+  @Test public void leJoin() throws Exception {
+    checkJoin(Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  @Test public void gtJoin() throws Exception {
+    checkJoin(Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN);
+  }
+
+  @Test public void geJoin() throws Exception {
+    checkJoin(Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.LESS_THAN_OR_EQ);
+  }
+
+  /**
+   * Rewinding probes the index again without scanning the inner table.
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred,
+        TestUtil.createTupleList(2, OUTER), new SeqScan(tid, index.getId()));
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      count--;
+    }
+    op.close();
+    assertEquals(0, count);
+    assertEquals(OUTER.length, index.probes.size());
+  }
+
+  /**
+   * Only predicate-free scans of an index keyed on the join field can be
+   * probed, on operators the index can look up.
+   */
+  @Test public void canProbe() throws Exception {
+    SeqScan scan = new SeqScan(tid, index.getId());
+    assertTrue(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan));
+    assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 1), scan));
+    assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan));
+    assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(2, INNER)));
+    scan.setPredicate(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(120)));
+    assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -1,7 +1,10 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.NoSuchElementException;
 
 import junit.framework.JUnit4TestAdapter;
@@ -178,6 +181,89 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator with more groups than fit in memory, which are
+   * spilled to disk and combined when the results are read
+   */
+  @Test public void spillGroups() throws Exception {
+    int groups = 5000;
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    // room for a few hundred groups
+    agg.setMemoryBudget(BufferPool.getPageSize() * 8);
+    OpIterator scan = sumScan(groups, 1);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    checkSums(agg.iterator(), groups, 1);
+
+    // values merged after the results were read are combined with the
+    // earlier spills
+    scan = sumScan(groups, 2);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    checkSums(agg.iterator(), groups, 3);
+  }
+
+  /**
+   * The spill files are deleted once the results and the aggregator are
+   * closed
+   */
+  @Test public void spillFilesDeleted() throws Exception {
+    int before = spillFiles();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    agg.setMemoryBudget(BufferPool.getPageSize() * 8);
+    OpIterator scan = sumScan(5000, 1);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    checkSums(agg.iterator(), 5000, 1);
+    assertTrue(spillFiles() > before);
+    agg.close();
+    assertEquals(before, spillFiles());
+  }
+
+  private static int spillFiles() {
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+    int count = 0;
+    for (File f : files) {
+      if (f.getName().startsWith("simpledb") && f.getName().endsWith(".spill"))
+        count++;
+    }
+    return count;
+  }
+
+  // tuples {g, g * factor} for every group g, in no particular order
+  private static OpIterator sumScan(int groups, int factor) {
+    int[] data = new int[2 * groups];
+    for (int i = 0; i < groups; i++) {
+      int g = (int) ((long) i * 7919 % groups);
+      data[2 * i] = g;
+      data[2 * i + 1] = g * factor;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  // the sum of every group g is g * factor
+  private static void checkSums(OpIterator it, int groups, int factor) throws Exception {
+    it.open();
+    for (int pass = 0; pass < 2; pass++) {
+      boolean[] seen = new boolean[groups];
+      int count = 0;
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        int g = ((IntField) t.getField(0)).getValue();
+        assertEquals(g * factor, ((IntField) t.getField(1)).getValue());
+        assertFalse(seen[g]);
+        seen[g] = true;
+        count++;
+      }
+      assertEquals(groups, count);
+      it.rewind();
+    }
+    it.close();
+  }
+
   /**
    * JUnit suite target
    */
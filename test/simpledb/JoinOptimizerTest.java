@@ -87,6 +87,63 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         TableStats.setTableStats(tableName2, stats2);
     }
 
+    /**
+     * instantiateJoin merges children sorted on the join fields (range joins
+     * only on small inner tables), probes an index on the inner join field,
+     * hashes equi-joins and uses block nested loops otherwise.
+     */
+    @Test
+    public void instantiateJoinTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        TestUtil.ListIndex index = new TestUtil.ListIndex(f,
+                Utility.getTupleDesc(2, "c"), new ArrayList<Tuple>());
+        Database.getCatalog().addTable(index, "TI");
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "c0", "c0",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", "c0", "c0",
+                Predicate.Op.LESS_THAN);
+
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq,
+                new OrderBy(0, true, new SeqScan(tid, tableId1, "a")),
+                new OrderBy(0, true, new SeqScan(tid, tableId2, "b")))
+                instanceof SortMergeJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(lt,
+                new OrderBy(0, true, new SeqScan(tid, tableId1, "a")),
+                new SeqScan(tid, index.getId(), "b"))
+                instanceof SortMergeJoin);
+        // a sorted inner side that may not fit in memory
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(lt,
+                new OrderBy(0, true, new SeqScan(tid, tableId1, "a")),
+                new OrderBy(0, true, new SeqScan(tid, tableId2, "b")))
+                instanceof BlockNestedLoopJoin);
+
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq,
+                new SeqScan(tid, tableId1, "a"),
+                new SeqScan(tid, index.getId(), "b"))
+                instanceof IndexNestedLoopJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(lt,
+                new SeqScan(tid, tableId1, "a"),
+                new SeqScan(tid, index.getId(), "b"))
+                instanceof IndexNestedLoopJoin);
+        // probing the index would drop the scan's own predicate
+        SeqScan filtered = new SeqScan(tid, index.getId(), "b");
+        filtered.setPredicate(new Predicate(1, Predicate.Op.EQUALS, new IntField(1)));
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq,
+                new SeqScan(tid, tableId1, "a"), filtered)
+                instanceof HashEquiJoin);
+
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq,
+                new SeqScan(tid, tableId1, "a"),
+                new SeqScan(tid, tableId2, "b"))
+                instanceof HashEquiJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(lt,
+                new SeqScan(tid, tableId1, "a"),
+                new SeqScan(tid, tableId2, "b"))
+                instanceof BlockNestedLoopJoin);
+    }
+
     private double[] getRandomJoinCosts(JoinOptimizer jo, LogicalJoinNode js,
             int[] card1s, int[] card2s, double[] cost1s, double[] cost2s) {
         double[] ret = new double[card1s.length];
@@ -0,0 +1,187 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager lm;
+    private PageId p0;
+
+    @Before public void setUpLockManager() {
+        lm = new LockManager(5000);
+        p0 = new HeapPageId(-1, 0);
+    }
+
+    /**
+     * Requests a lock in a new thread; the request is abandoned when the test
+     * ends.
+     */
+    private static class Requester extends Thread {
+        private final LockManager lm;
+        private final TransactionId tid;
+        private final PageId pid;
+        private final Permissions perm;
+        volatile boolean acquired = false;
+
+        Requester(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(tid, perm, pid);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                // left unacquired
+            }
+        }
+    }
+
+    private Requester request(TransactionId tid, Permissions perm) throws InterruptedException {
+        Requester r = new Requester(lm, tid, p0, perm);
+        r.start();
+        Thread.sleep(50);
+        return r;
+    }
+
+    /**
+     * A sole reader upgrades to a write lock without waiting.
+     */
+    @Test public void upgrade() throws Exception {
+        TransactionId tid = new TransactionId();
+        lm.acquireLock(tid, Permissions.READ_ONLY, p0);
+        lm.acquireLock(tid, Permissions.READ_WRITE, p0);
+        Requester other = request(new TransactionId(), Permissions.READ_ONLY);
+        assertFalse(other.acquired);
+        lm.releaseLock(tid);
+        other.join(1000);
+        assertTrue(other.acquired);
+    }
+
+    /**
+     * A reader arriving behind a waiting writer waits its turn instead of
+     * joining the current readers.
+     */
+    @Test public void fifo() throws Exception {
+        TransactionId t1 = new TransactionId();
+        lm.acquireLock(t1, Permissions.READ_ONLY, p0);
+        Requester writer = request(new TransactionId(), Permissions.READ_WRITE);
+        Requester reader = request(new TransactionId(), Permissions.READ_ONLY);
+        assertFalse(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseLock(t1, p0);
+        writer.join(1000);
+        assertTrue(writer.acquired);
+        assertFalse(reader.acquired);
+        assertFalse(lm.isHoldLock(t1, p0));
+    }
+
+    /**
+     * A cycle of waiting transactions is broken by aborting the youngest
+     * one, and its locks then go to the survivor.
+     */
+    @Test public void deadlock() throws Exception {
+        PageId p1 = new HeapPageId(-1, 1);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, Permissions.READ_WRITE, p0);
+        lm.acquireLock(t2, Permissions.READ_WRITE, p1);
+        Requester r1 = new Requester(lm, t1, p1, Permissions.READ_WRITE);
+        r1.start();
+        Thread.sleep(50);
+
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(t2, Permissions.READ_WRITE, p0);
+            throw new Exception("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected: t2 is the younger transaction
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseLock(t2);
+        r1.join(1000);
+        assertTrue(r1.acquired);
+    }
+
+    /**
+     * Two transactions can lock different records of the same page
+     * exclusively, but not the same record, and a page lock conflicts with
+     * the intention locks below it.
+     */
+    @Test public void recordLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, Permissions.READ_WRITE, new RecordId(p0, 0));
+        lm.acquireLock(t2, Permissions.READ_WRITE, new RecordId(p0, 1));
+        assertTrue(lm.isHoldLock(t1, new RecordId(p0, 0)));
+        assertFalse(lm.isHoldLock(t1, new RecordId(p0, 1)));
+        // the intention exclusive lock counts as a lock on the page, so
+        // that the page is written with the transaction's other pages
+        assertTrue(lm.isHoldLock(t1, p0));
+
+        Requester reader = request(new TransactionId(), Permissions.READ_ONLY);
+        assertFalse(reader.acquired);
+        lm.releaseLock(t1);
+        lm.releaseLock(t2);
+        reader.join(1000);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * Too many record locks on a page turn into a page lock, and too many
+     * locks in a table into a table lock.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThresholds(3, 5);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            lm.acquireLock(tid, Permissions.READ_ONLY, new RecordId(p0, i));
+        }
+        assertTrue(lm.isHoldLock(tid, p0));
+        assertFalse(lm.isHoldLock(tid, new HeapPageId(-1, 1)));
+
+        lm.acquireLock(tid, Permissions.READ_ONLY, new HeapPageId(-1, 1));
+        lm.acquireLock(tid, Permissions.READ_ONLY, new RecordId(new HeapPageId(-1, 2), 0));
+        // every page of the table is now covered
+        assertTrue(lm.isHoldLock(tid, new HeapPageId(-1, 7)));
+    }
+
+    /**
+     * A request that is not granted before its deadline aborts.
+     */
+    @Test public void timeout() throws Exception {
+        lm = new LockManager(50);
+        lm.acquireLock(new TransactionId(), Permissions.READ_WRITE, p0);
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(new TransactionId(), Permissions.READ_ONLY, p0);
+            throw new Exception("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(false, Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
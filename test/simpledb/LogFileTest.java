@@ -0,0 +1,346 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    // small enough for a few records to fill several segments
+    private static final int SEGMENT_SIZE = 64;
+
+    private File file;
+    private File archive;
+    private LogFile log;
+
+    @Before public void setUpLog() throws Exception {
+        file = File.createTempFile("logfiletest", null);
+        file.deleteOnExit();
+        archive = Files.createTempDirectory("logfiletest").toFile();
+        log = new LogFile(file, SEGMENT_SIZE);
+    }
+
+    @After public void closeLog() {
+        log.setGroupCommit(false);
+        log.setCheckpointInterval(0);
+        for (long seg = 0; log.segmentFile(seg).exists() || seg < 100; seg++) {
+            log.segmentFile(seg).delete();
+            new File(archive, log.segmentFile(seg).getName()).delete();
+        }
+        archive.delete();
+    }
+
+    // bytes of log on disk, if nothing was truncated
+    private long onDisk() {
+        long length = 0;
+        for (long seg = 0; log.segmentFile(seg).exists(); seg++) {
+            length += log.segmentFile(seg).length();
+        }
+        return length;
+    }
+
+    /**
+     * LSNs increase with every record, and records stay in the log buffer
+     * until the log is forced.
+     */
+    @Test public void lsns() throws Exception {
+        TransactionId t1 = new TransactionId();
+        long begin = log.logXactionBegin(t1);
+        long commit = log.logCommit(t1);
+        assertTrue(commit > begin);
+        long length = onDisk();
+        assertEquals(commit + LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE, length);
+
+        TransactionId t2 = new TransactionId();
+        long begin2 = log.logXactionBegin(t2);
+        assertEquals(length, begin2);
+        assertEquals(length, onDisk());
+        log.force(log.getEndLsn());
+        assertTrue(onDisk() > length);
+    }
+
+    /**
+     * A commit is durable when logCommit returns even if the log buffer
+     * was written out in the middle of the commit record.
+     */
+    @Test public void commitSplitByBufferWrite() throws Exception {
+        log = new LogFile(file, 2 * LogFile.LOG_BUFFER_SIZE);
+        int beginSize = LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+        // leave less room in the buffer than a commit record takes
+        while (log.getEndLsn() + 2 * beginSize < LogFile.LOG_BUFFER_SIZE) {
+            log.logXactionBegin(new TransactionId());
+        }
+        TransactionId t1 = new TransactionId();
+        log.logXactionBegin(t1);
+        long commit = log.logCommit(t1);
+        assertTrue(commit < LogFile.LOG_BUFFER_SIZE);
+        assertTrue(log.getEndLsn() > LogFile.LOG_BUFFER_SIZE);
+        assertEquals(log.getEndLsn(), onDisk());
+    }
+
+    /**
+     * Truncating the log deletes the segments before the oldest running
+     * transaction, and the remaining records keep their LSNs across a
+     * restart.
+     */
+    @Test public void truncateKeepsLsns() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            TransactionId t1 = new TransactionId();
+            log.logXactionBegin(t1);
+            log.logCommit(t1);
+        }
+        TransactionId t2 = new TransactionId();
+        long begin2 = log.logXactionBegin(t2);
+        log.logCheckpoint();
+        for (long seg = 0; seg < begin2 / SEGMENT_SIZE; seg++) {
+            assertFalse(log.segmentFile(seg).exists());
+        }
+        assertTrue(log.segmentFile(begin2 / SEGMENT_SIZE).exists());
+
+        long commit2 = log.logCommit(t2);
+        assertTrue(commit2 > begin2);
+        long end = log.getEndLsn();
+
+        log = new LogFile(file, SEGMENT_SIZE);
+        log.recover();
+        // recovery only added its checkpoint
+        assertTrue(log.getEndLsn() > end);
+        assertFalse(log.segmentFile(0).exists());
+    }
+
+    /**
+     * With an archive directory set, truncation moves segments there.
+     */
+    @Test public void archiveSegments() throws Exception {
+        log.setArchiveDirectory(archive);
+        for (int i = 0; i < 5; i++) {
+            TransactionId t1 = new TransactionId();
+            log.logXactionBegin(t1);
+            log.logCommit(t1);
+        }
+        log.logCheckpoint();
+        assertFalse(log.segmentFile(0).exists());
+        assertTrue(new File(archive, log.segmentFile(0).getName()).exists());
+    }
+
+    /**
+     * A page image is written with the byte codes of its page and page id
+     * classes, and read back as a page of the same class and contents.
+     */
+    @Test public void pageData() throws Exception {
+        File tableFile = File.createTempFile("logfiletest", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(bytes), page);
+        // type, id type, id count, two id ints, length, data
+        assertEquals(3 + 3 * LogFile.INT_SIZE + BufferPool.getPageSize(), bytes.size());
+
+        Page read = log.readPageData(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(read instanceof HeapPage);
+        assertEquals(pid, read.getId());
+        assertTrue(Arrays.equals(page.getPageData(), read.getPageData()));
+    }
+
+    /**
+     * Inserting and deleting a tuple through the BufferPool logs the tuple's
+     * slot, not images of its page.
+     */
+    @Test public void tupleRecords() throws Exception {
+        File tableFile = File.createTempFile("logfiletest", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        LogFile dbLog = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+
+        int records = dbLog.getTotalRecords();
+        long end = dbLog.getEndLsn();
+        Tuple t = Utility.getHeapTuple(2, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(records + 2, dbLog.getTotalRecords());
+        // two records, each a small fraction of a page
+        assertTrue(dbLog.getEndLsn() - end < 200);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Recovery drops a record whose write was cut short by a crash, and
+     * still redoes the committed changes before it.
+     */
+    @Test public void recoverTornTail() throws Exception {
+        File tableFile = File.createTempFile("logfiletest", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(7, 2));
+        t.commit();
+        // lose the table file's contents, but keep its page
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+
+        LogFile dbLog = Database.getLogFile();
+        long end = dbLog.getEndLsn();
+        File segment = dbLog.segmentFile(end / LogFile.DEFAULT_SEGMENT_SIZE);
+        FileOutputStream tail = new FileOutputStream(segment, true);
+        tail.write(new byte[] { 0, 0, 0, 6, 0, 0 });
+        tail.close();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, tableFile);
+        Database.getLogFile().recover();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(Utility.getHeapTuple(7, 2).toString(), page.iterator().next().toString());
+        // the torn record was replaced by the checkpoint recovery ends with,
+        // which has no running transactions and no dirty pages
+        assertEquals(end + 3 * LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE,
+                Database.getLogFile().getEndLsn());
+    }
+
+    /**
+     * Redo spread over several threads, each with room for fewer pages
+     * than it redoes, still installs every committed change.
+     */
+    @Test public void parallelRedo() throws Exception {
+        File tableFile = File.createTempFile("logfiletest", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        int rows = 504 * 8;
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < rows; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+        // lose the table file's contents, but keep its pages
+        int pages = hf.numPages();
+        assertTrue(pages > 4);
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), pgNo), HeapPage.createEmptyPageData()));
+        }
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, tableFile);
+        Database.resetBufferPool(4);
+        Database.getLogFile().setRedoThreads(4);
+        Database.getLogFile().recover();
+        boolean[] seen = new boolean[rows];
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext();) {
+                int value = ((IntField) it.next().getField(0)).getValue();
+                assertFalse(seen[value]);
+                seen[value] = true;
+            }
+        }
+        for (int i = 0; i < rows; i++) {
+            assertTrue(seen[i]);
+        }
+    }
+
+    /**
+     * Undo after redo has filled a small pool with dirty pages steals
+     * them, even without STEAL, to roll back a transaction that changed
+     * more pages than the pool holds.
+     */
+    @Test public void undoWithPoolFullOfRedonePages() throws Exception {
+        File tableFile = File.createTempFile("logfiletest", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 504 * 8; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getLogFile().force(Database.getLogFile().getEndLsn());
+        int pages = hf.numPages();
+        assertTrue(pages > 4);
+
+        // crash before t commits
+        Database.reset();
+        hf = Utility.openHeapFile(2, tableFile);
+        Database.resetBufferPool(4);
+        Database.getLogFile().setRedoThreads(1);
+        Database.getLogFile().recover();
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            assertFalse(page.iterator().hasNext());
+        }
+    }
+
+    /**
+     * A checkpoint does not write the pages of running transactions, but
+     * recovery from it still undoes the changes that reached disk.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        File tableFile = File.createTempFile("logfiletest", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+
+        Database.getLogFile().logCheckpoint();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(page.getNumEmptySlots() - 1, ((HeapPage) Database.getBufferPool()
+                .getPage(t1.getId(), pid, Permissions.READ_ONLY)).getNumEmptySlots());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, tableFile);
+        Database.getLogFile().recover();
+        page = (HeapPage) hf.readPage(pid);
+        assertFalse(page.iterator().hasNext());
+    }
+
+    /**
+     * With a checkpoint interval set, the log is checkpointed in the
+     * background as it grows.
+     */
+    @Test public void checkpointInterval() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        assertEquals(-1, log.getLastCheckpoint());
+        log.setCheckpointInterval(100);
+        for (int i = 0; i < 10; i++) {
+            log.logCommit(new TransactionId());
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (log.getLastCheckpoint() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        log.setCheckpointInterval(0);
+        assertTrue(log.getLastCheckpoint() > 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  // width 2 tuples {(i * 7919) % count, i % 3} for i in [0, count)
+  private static OpIterator shuffled(int count) {
+    int[] data = new int[2 * count];
+    for (int i = 0; i < count; i++) {
+      data[2 * i] = (int) ((long) i * 7919 % count);
+      data[2 * i + 1] = i % 3;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private static List<Integer> firstFields(OpIterator op) throws Exception {
+    List<Integer> results = new ArrayList<Integer>();
+    while (op.hasNext()) {
+      results.add(((IntField) op.next().getField(0)).getValue());
+    }
+    return results;
+  }
+
+  /**
+   * Ties on the first field are ordered by the second.
+   */
+  @Test public void multipleFields() throws Exception {
+    OpIterator child = TestUtil.createTupleList(2,
+        new int[] { 2, 1,
+                    1, 5,
+                    2, 3,
+                    1, 4,
+                    3, 0 });
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 5,
+                    1, 4,
+                    2, 3,
+                    2, 1,
+                    3, 0 });
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, child);
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Tuples that do not fit in the memory budget are sorted in runs that are
+   * merged, in several passes when there are more runs than pages.
+   */
+  @Test public void externalSort() throws Exception {
+    int count = 20000;
+    OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { true }, shuffled(count));
+    // 4 pages of 512 tuples, so 10 runs merged 3 at a time
+    op.setMemoryBudget(4 * BufferPool.getPageSize());
+    op.open();
+    List<Integer> results = firstFields(op);
+    assertEquals(count, results.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, (int) results.get(i));
+    }
+
+    op.rewind();
+    assertEquals(results, firstFields(op));
+    op.close();
+  }
+
+  /**
+   * Only the first tuples of the order are returned.
+   */
+  @Test public void limit() throws Exception {
+    int count = 5000;
+    OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { false }, shuffled(count), 10);
+    op.open();
+    List<Integer> results = firstFields(op);
+    assertEquals(10, results.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(count - 1 - i, (int) results.get(i));
+    }
+    op.close();
+
+    // a limit too large for the budget goes through the external sort
+    op = new OrderBy(new int[] { 0 }, new boolean[] { true }, shuffled(count), 3000);
+    op.setMemoryBudget(2 * BufferPool.getPageSize());
+    op.open();
+    results = firstFields(op);
+    assertEquals(3000, results.size());
+    for (int i = 0; i < 3000; i++) {
+      assertEquals(i, (int) results.get(i));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,57 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PrefetcherTest extends SimpleDbTestBase {
+
+    /**
+     * Prefetched pages only take the pool's free frames; the oldest unclaimed
+     * reads make room for newer ones.
+     */
+    @Test public void boundedByFreeFrames() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+
+        Prefetcher prefetcher = new Prefetcher(bp);
+        for (int i = 2; i < 6; i++) {
+            prefetcher.prefetch(new HeapPageId(hf.getId(), i));
+        }
+        assertNull(prefetcher.take(new HeapPageId(hf.getId(), 2)));
+        assertNull(prefetcher.take(new HeapPageId(hf.getId(), 3)));
+        assertEquals(new HeapPageId(hf.getId(), 4),
+                prefetcher.take(new HeapPageId(hf.getId(), 4)).getId());
+        assertEquals(new HeapPageId(hf.getId(), 5),
+                prefetcher.take(new HeapPageId(hf.getId(), 5)).getId());
+        prefetcher.close();
+    }
+
+    /**
+     * A closed prefetcher drops its pages and reads no more.
+     */
+    @Test public void close() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        Prefetcher prefetcher = new Prefetcher(Database.getBufferPool());
+        prefetcher.prefetch(new HeapPageId(hf.getId(), 0));
+        prefetcher.close();
+        assertNull(prefetcher.take(new HeapPageId(hf.getId(), 0)));
+        prefetcher.prefetch(new HeapPageId(hf.getId(), 1));
+        assertNull(prefetcher.take(new HeapPageId(hf.getId(), 1)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetcherTest.class);
+    }
+}
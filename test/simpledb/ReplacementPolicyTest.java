@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.EvictionFilter ANY =
+            new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    return true;
+                }
+            };
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * CLOCK gives a referenced page a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockPolicy(3);
+        policy.recordAccess(page(0));
+        policy.recordAccess(page(1));
+        policy.recordAccess(page(2));
+        // first sweep clears every bit, so page 0 goes first
+        assertEquals(page(0), policy.evict(ANY));
+        policy.recordAccess(page(3));
+        policy.recordAccess(page(1));
+        assertEquals(page(2), policy.evict(ANY));
+    }
+
+    /**
+     * LRU-2 evicts a page seen once before a page seen twice, even if the
+     * latter was accessed earlier.
+     */
+    @Test public void lruKPrefersSingleAccess() {
+        ReplacementPolicy policy = new LruKPolicy(4);
+        policy.recordAccess(page(0));
+        policy.recordAccess(page(0));
+        policy.recordAccess(page(1));
+        policy.recordAccess(page(1));
+        policy.recordAccess(page(2));
+        assertEquals(page(2), policy.evict(ANY));
+        assertEquals(page(0), policy.evict(ANY));
+        assertEquals(page(1), policy.evict(ANY));
+        assertNull(policy.evict(ANY));
+    }
+
+    /**
+     * A one-pass scan through 2Q does not push out a page in Am.
+     */
+    @Test public void twoQueueScanResistant() {
+        ReplacementPolicy policy = new TwoQueuePolicy(8, 2, 4);
+        // promote page 0 to Am: first access, eviction to A1out, re-access
+        policy.recordAccess(page(0));
+        assertEquals(page(0), policy.evict(ANY));
+        policy.recordAccess(page(0));
+        for (int i = 1; i < 20; i++) {
+            policy.recordAccess(page(i));
+            if (i > 2) {
+                assertEquals(page(i - 2), policy.evict(ANY));
+            }
+        }
+        policy.remove(page(18));
+        policy.remove(page(19));
+        assertEquals(page(0), policy.evict(ANY));
+    }
+
+    /**
+     * Pages rejected by the filter are never chosen.
+     */
+    @Test public void filterRespected() {
+        ReplacementPolicy[] policies = new ReplacementPolicy[] {
+                new ClockPolicy(2), new LruKPolicy(2), new TwoQueuePolicy(2) };
+        ReplacementPolicy.EvictionFilter notZero = new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return pid.getPageNumber() != 0;
+            }
+        };
+        for (ReplacementPolicy policy : policies) {
+            policy.recordAccess(page(0));
+            policy.recordAccess(page(1));
+            assertEquals(page(1), policy.evict(notZero));
+            assertNull(policy.evict(notZero));
+            assertEquals(page(0), policy.evict(ANY));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
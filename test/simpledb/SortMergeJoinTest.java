@@ -0,0 +1,164 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  // sorted on the first field, with duplicate keys and keys on one side only
+  private static final int[] OUTER = { 1, 10,
+                                       2, 20,
+                                       2, 21,
+                                       4, 40,
+                                       6, 60,
+                                       6, 61 };
+  private static final int[] INNER = { 0, 100, 7,
+                                       2, 120, 7,
+                                       2, 121, 7,
+                                       3, 130, 7,
+                                       6, 160, 7,
+                                       8, 180, 7 };
+
+  private static List<String> results(OpIterator op) throws Exception {
+    List<String> results = new ArrayList<String>();
+    op.open();
+    while (op.hasNext()) {
+      results.add(op.next().toString());
+    }
+    op.close();
+    Collections.sort(results);
+    return results;
+  }
+
+  // the merge join returns what the nested loops join returns
+  private void checkJoin(Predicate.Op op) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    List<String> expected = results(new Join(pred,
+        TestUtil.createTupleList(2, OUTER), TestUtil.createTupleList(3, INNER)));
+    List<String> actual = results(new SortMergeJoin(pred,
+        TestUtil.createTupleList(2, OUTER), TestUtil.createTupleList(3, INNER)));
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, actual);
+  }
+
+  @Test public void eqJoin() throws Exception {
+    checkJoin(Predicate.Op.EQUALS);
+  }
+
+  @Test public void ltJoin() throws Exception {
+    checkJoin(Predicate.Op.LESS_THAN);
+  }
+
+  @Test public void leJoin() throws Exception {
+    checkJoin(Predicate.Op.LESS_THAN_OR_EQ);
+  }
+
+  @Test public void gtJoin() throws Exception {
+    checkJoin(Predicate.Op.GREATER_THAN);
+  }
+
+  @Test public void geJoin() throws Exception {
+    checkJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred,
+        TestUtil.createTupleList(2, OUTER), TestUtil.createTupleList(3, INNER));
+    List<String> first = results(op);
+    op.open();
+    op.next();
+    op.rewind();
+    List<String> again = new ArrayList<String>();
+    while (op.hasNext()) {
+      again.add(op.next().toString());
+    }
+    op.close();
+    Collections.sort(again);
+    assertEquals(first, again);
+  }
+
+  /**
+   * Long inputs are joined while only a few inner tuples are kept.
+   */
+  @Test public void longInputs() throws Exception {
+    int keys = 5000;
+    int[] outer = new int[2 * keys];
+    int[] inner = new int[4 * keys];
+    for (int i = 0; i < keys; i++) {
+      outer[2 * i] = i;
+      outer[2 * i + 1] = i;
+      // every key twice
+      inner[4 * i] = i;
+      inner[4 * i + 1] = 0;
+      inner[4 * i + 2] = i;
+      inner[4 * i + 3] = 1;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred,
+        TestUtil.createTupleList(2, outer), TestUtil.createTupleList(2, inner));
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      count++;
+    }
+    op.close();
+    assertEquals(2 * keys, count);
+  }
+
+  /**
+   * Children are sorted when they scan a table in key order or sort it.
+   */
+  @Test public void isSorted() throws Exception {
+    OpIterator list = TestUtil.createTupleList(2, OUTER);
+    assertFalse(SortMergeJoin.isSorted(list, 0));
+    assertTrue(SortMergeJoin.isSorted(new OrderBy(0, true, list), 0));
+    assertFalse(SortMergeJoin.isSorted(new OrderBy(0, false, list), 0));
+    assertFalse(SortMergeJoin.isSorted(new OrderBy(1, true, list), 0));
+  }
+
+  /**
+   * Range joins are only merged on inner tables that fit in memory.
+   */
+  @Test public void fitsInMemory() throws Exception {
+    Database.resetBufferPool(4);
+    OpIterator list = TestUtil.createTupleList(2, OUTER);
+    assertTrue(SortMergeJoin.fitsInMemory(Predicate.Op.EQUALS, list));
+    assertFalse(SortMergeJoin.fitsInMemory(Predicate.Op.GREATER_THAN, list));
+
+    HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    HeapFile large = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+    TransactionId tid = new TransactionId();
+    OpIterator scan = new SeqScan(tid, small.getId());
+    assertTrue(SortMergeJoin.fitsInMemory(Predicate.Op.LESS_THAN, scan));
+    assertTrue(SortMergeJoin.fitsInMemory(Predicate.Op.LESS_THAN,
+        new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(1)), scan)));
+    assertFalse(SortMergeJoin.fitsInMemory(Predicate.Op.LESS_THAN,
+        new SeqScan(tid, large.getId())));
+    assertTrue(SortMergeJoin.fitsInMemory(Predicate.Op.EQUALS,
+        new SeqScan(tid, large.getId())));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -214,6 +214,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void writePages(List<Page> pages) throws IOException {
+            throw new RuntimeException("not implemented");
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -228,6 +232,9 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void close() {
+        }
+
         public int getId() {
             return tableid;
         }
@@ -241,6 +248,67 @@ public class TestUtil {
 		}
     }
 
+    /**
+     * Stub B+ tree keyed on its first field, for unit testing. Index lookups
+     * are answered from a list of tuples and recorded; scanning the whole
+     * file fails.
+     */
+    public static class ListIndex extends BTreeFile {
+        private final List<Tuple> tuples;
+        public final List<IndexPredicate> probes = new ArrayList<IndexPredicate>();
+
+        public ListIndex(File f, TupleDesc td, List<Tuple> tuples) {
+            super(f, 0, td);
+            this.tuples = tuples;
+        }
+
+        public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+            probes.add(ipred);
+            final List<Tuple> matches = new ArrayList<Tuple>();
+            for (Tuple t : tuples) {
+                if (t.getField(0).compare(ipred.getOp(), ipred.getField())) {
+                    matches.add(t);
+                }
+            }
+            return new AbstractDbFileIterator() {
+                private Iterator<Tuple> it = null;
+
+                public void open() {
+                    it = matches.iterator();
+                }
+
+                public void rewind() {
+                    open();
+                }
+
+                protected Tuple readNext() {
+                    return it != null && it.hasNext() ? it.next() : null;
+                }
+
+                public void close() {
+                    super.close();
+                    it = null;
+                }
+            };
+        }
+
+        public DbFileIterator iterator(TransactionId tid) {
+            return new AbstractDbFileIterator() {
+                public void open() {
+                    throw new RuntimeException("the whole index was scanned");
+                }
+
+                public void rewind() {
+                    open();
+                }
+
+                protected Tuple readNext() {
+                    return null;
+                }
+            };
+        }
+    }
+
     /**
      * Mock SeqScan class for unit testing.
      */
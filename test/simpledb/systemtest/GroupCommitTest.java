@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.*;
+
+/**
+ * Commits from many threads through the group commit flusher.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 20;
+
+    @After public void disableGroupCommit() {
+        Database.getLogFile().setGroupCommit(false);
+    }
+
+    @Test public void concurrentCommits() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        final HeapFile table = SystemTestUtil.createRandomHeapFile(1, 0, null, tuples);
+        Database.getLogFile().setGroupCommit(true);
+        assertTrue(Database.getLogFile().isGroupCommit());
+
+        final AtomicInteger committed = new AtomicInteger();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < COMMITS_PER_THREAD; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            Tuple tup = new Tuple(table.getTupleDesc());
+                            tup.setField(0, new IntField(thread * COMMITS_PER_THREAD + j));
+                            Insert insert = new Insert(t.getId(), new TupleIterator(
+                                    table.getTupleDesc(), Arrays.asList(tup)), table.getId());
+                            insert.open();
+                            insert.next();
+                            insert.close();
+                            t.commit();
+                            committed.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            try {
+                                t.abort();
+                            } catch (Exception e2) {
+                                synchronized (errors) {
+                                    errors.add(e2);
+                                }
+                            }
+                            j--;
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                            return;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+        assertEquals(THREADS * COMMITS_PER_THREAD, committed.get());
+
+        // every committed row is in the table
+        HashMap<Integer, Integer> found = new HashMap<Integer, Integer>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            int v = ((IntField) it.next().getField(0)).getValue();
+            found.put(v, found.containsKey(v) ? found.get(v) + 1 : 1);
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(THREADS * COMMITS_PER_THREAD, found.size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
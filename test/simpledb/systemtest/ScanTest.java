@@ -71,21 +71,6 @@ public class ScanTest extends SimpleDbTestBase {
      * @throws TransactionAbortedException
      * @throws DbException */
     @Test public void testCache() throws IOException, DbException, TransactionAbortedException {
-        /** Counts the number of readPage operations. */
-        class InstrumentedHeapFile extends HeapFile {
-            public InstrumentedHeapFile(File f, TupleDesc td) {
-                super(f, td);
-            }
-
-            @Override
-            public Page readPage(PageId pid) throws NoSuchElementException {
-                readCount += 1;
-                return super.readPage(pid);
-            }
-
-            public int readCount = 0;
-        }
-
         // Create the table
         final int PAGES = 30;
         ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
@@ -104,6 +89,99 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that scanning a table larger than the buffer pool does not
+     * evict pages that were already cached.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testScanRing() throws IOException, DbException, TransactionAbortedException {
+        final int POOL_PAGES = 10;
+        Database.resetBufferPool(POOL_PAGES);
+
+        ArrayList<ArrayList<Integer>> smallTuples = new ArrayList<ArrayList<Integer>>();
+        File small = SystemTestUtil.createRandomHeapFileUnopened(1, 10, 1000, null, smallTuples);
+        InstrumentedHeapFile hot = new InstrumentedHeapFile(small, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+        File big = SystemTestUtil.createRandomHeapFileUnopened(1, 992*3*POOL_PAGES, 1000, null, bigTuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(big, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        SystemTestUtil.matchTuples(hot, smallTuples);
+        assertEquals(1, hot.readCount);
+
+        // the big scan goes through a ring and leaves the hot page cached
+        SystemTestUtil.matchTuples(table, bigTuples);
+        assertEquals(3*POOL_PAGES, table.readCount);
+        SystemTestUtil.matchTuples(hot, smallTuples);
+        assertEquals(1, hot.readCount);
+    }
+
+    /** Verifies that a memory-mapped HeapFile returns the same tuples as a
+     * regular one, also after it grows.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testMemoryMappedScan() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        assertTrue(table.isMemoryMapped());
+        SystemTestUtil.matchTuples(table, tuples);
+
+        // append a page past the end of the current mapping
+        TransactionId tid = new TransactionId();
+        int pages = table.numPages();
+        while (table.numPages() == pages) {
+            Tuple t = Utility.getHeapTuple(new int[] { 7, 7 });
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Verifies that only read-only transactions scan a memory-mapped
+     * HeapFile without caching its pages, and that they may not write.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testReadOnlyMappedScan() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        HeapPageId first = new HeapPageId(table.getId(), 0);
+
+        TransactionId readOnly = new TransactionId(true);
+        SystemTestUtil.matchTuples(table, readOnly, tuples);
+        assertNull(Database.getBufferPool().getBufferedPage(first));
+        try {
+            Database.getBufferPool().getPage(readOnly, first, Permissions.READ_WRITE);
+            fail("read-only transaction got a page for writing");
+        } catch (DbException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(readOnly);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertNotNull(Database.getBufferPool().getBufferedPage(first));
+    }
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+
+        public int readCount = 0;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
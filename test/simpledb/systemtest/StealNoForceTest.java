@@ -0,0 +1,192 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.*;
+
+/**
+ * Transactions with the BufferPool in STEAL/NO-FORCE mode.
+ */
+public class StealNoForceTest extends SimpleDbTestBase {
+
+    private static final int BUFFER_PAGES = 4;
+    // enough rows to fill twice as many pages as the pool holds
+    private static final int ROWS = 504 * BUFFER_PAGES * 2;
+
+    private File file;
+    private HeapFile table;
+
+    @Before public void setUpTable() throws IOException {
+        file = File.createTempFile("stealnoforce", ".dat");
+        file.deleteOnExit();
+        table = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Database.resetBufferPool(BUFFER_PAGES).setStealNoForce(true);
+    }
+
+    @After public void stopWriter() {
+        Database.getBufferPool().setStealNoForce(false);
+    }
+
+    private void insertRows(Transaction t, int from, int count) throws Exception {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = from; i < from + count; i++) {
+            rows.add(Utility.getHeapTuple(i, 2));
+        }
+        Insert insert = new Insert(t.getId(), new TupleIterator(table.getTupleDesc(), rows), table.getId());
+        insert.open();
+        assertEquals(count, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    private int countRows() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int count = 0;
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    private int rowsOnDisk() {
+        int count = 0;
+        for (int pgNo = 0; pgNo < table.numPages(); pgNo++) {
+            HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), pgNo));
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A transaction can dirty more pages than the pool holds: the pool
+     * writes some of them out before it commits.
+     */
+    @Test public void largeTransaction() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(t, 0, ROWS);
+        assertTrue(rowsOnDisk() > 0);
+        t.commit();
+        assertEquals(ROWS, countRows());
+    }
+
+    /**
+     * Aborting a transaction whose pages were written out undoes its
+     * changes from the log.
+     */
+    @Test public void abortAfterSteal() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(t, 0, ROWS);
+        assertTrue(rowsOnDisk() > 0);
+        t.abort();
+        assertEquals(0, countRows());
+    }
+
+    /**
+     * A commit only forces the log; recovery redoes the committed changes
+     * that had not reached the table file.
+     */
+    @Test public void commitForcesOnlyLog() throws Exception {
+        Database.getBufferPool().setWriterInterval(0);
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(t, 0, 10);
+        t.commit();
+        assertEquals(0, rowsOnDisk());
+
+        // crash
+        Database.reset();
+        table = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(10, rowsOnDisk());
+        assertEquals(10, countRows());
+    }
+
+    /**
+     * The background writer writes out committed pages without being
+     * asked to.
+     */
+    @Test public void backgroundWriter() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(t, 0, 10);
+        t.commit();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (rowsOnDisk() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, rowsOnDisk());
+    }
+
+    /**
+     * Changes lock the records they change, not their pages: two
+     * transactions delete rows of the same page at the same time, and
+     * aborting one puts back only its row.
+     */
+    @Test public void recordLocks() throws Exception {
+        Transaction setup = new Transaction();
+        setup.start();
+        insertRows(setup, 0, 2);
+        setup.commit();
+        Database.getBufferPool().flushAllPages();
+        HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+        Iterator<Tuple> rows = page.iterator();
+        Tuple first = rows.next();
+        final Tuple second = rows.next();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().deleteTuple(t1.getId(), first);
+        final Transaction t2 = new Transaction();
+        t2.start();
+        Thread deleter = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().deleteTuple(t2.getId(), second);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        deleter.start();
+        deleter.join(10000);
+        assertFalse(deleter.isAlive());
+
+        t1.abort();
+        t2.commit();
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        assertTrue(scan.hasNext());
+        assertEquals(first.getField(0), scan.next().getField(0));
+        assertFalse(scan.hasNext());
+        scan.close();
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealNoForceTest.class);
+    }
+}